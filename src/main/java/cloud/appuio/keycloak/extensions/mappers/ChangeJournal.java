@@ -0,0 +1,346 @@
+package cloud.appuio.keycloak.extensions.mappers;
+
+import org.jboss.logging.Logger;
+import org.keycloak.Config;
+import org.keycloak.models.AbstractKeycloakTransaction;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.util.JsonSerialization;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Append-only journal of the group and attribute changes made by the mappers, written as JSON lines.
+ * <p>
+ * Recording a change only puts it into a bounded in-memory buffer. A background thread drains the buffer in batches,
+ * appends each batch with a single write and forces it to disk once per batch.
+ * A batch that fails to be written is retried until it succeeds, meanwhile new changes queue up in the buffer.
+ * The file is rotated once it exceeds the configured size by renaming it with the UTC time of the rotation appended,
+ * e.g. {@code journal.jsonl.20211018T101500.123Z}. Rotated files are never deleted, retention is left to the operator.
+ * If the buffer stays full for longer than {@link #OFFER_TIMEOUT_MILLIS}, the change is dropped and counted instead of stalling the login.
+ * Use {@link ChangeJournalReader} to read the journal.
+ * <p>
+ * Changes made during a login should be recorded through {@link #afterCommit(KeycloakSession)},
+ * so that changes of a rolled back transaction never reach the journal.
+ */
+class ChangeJournal implements ChangeRecorder {
+    private static final Logger logger = Logger.getLogger(ChangeJournal.class);
+
+    static final ChangeJournal DISABLED = new ChangeJournal();
+
+    static final long DEFAULT_MAX_FILE_BYTES = 100L * 1024 * 1024;
+    static final int DEFAULT_BUFFER_SIZE = 10_000;
+    static final long OFFER_TIMEOUT_MILLIS = 100;
+    private static final long FLUSH_INTERVAL_MILLIS = 200;
+    private static final long RETRY_INTERVAL_MILLIS = 1000;
+    private static final int MAX_BATCH_SIZE = 1000;
+    private static final DateTimeFormatter ROTATION_TIME_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss.SSS'Z'").withZone(ZoneOffset.UTC);
+    private static final Pattern ROTATION_SUFFIX = Pattern.compile("\\d{8}T\\d{6}\\.\\d{3}Z(-\\d+)?");
+
+    private static final Map<Path, ChangeJournal> openJournals = new ConcurrentHashMap<>();
+
+    private final Path path;
+    private final long maxFileBytes;
+    private final BlockingQueue<Record> buffer;
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong writtenCount = new AtomicLong();
+    private final Thread flusher;
+    private volatile boolean running = true;
+    private FileChannel channel;
+
+    private ChangeJournal() {
+        this.path = null;
+        this.maxFileBytes = 0;
+        this.buffer = null;
+        this.flusher = null;
+    }
+
+    private ChangeJournal(Path path, long maxFileBytes, int bufferSize) {
+        this.path = path;
+        this.maxFileBytes = maxFileBytes;
+        this.buffer = new ArrayBlockingQueue<>(bufferSize);
+        this.flusher = new Thread(this::flushLoop, "change-journal-flusher");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close));
+    }
+
+    /**
+     * Returns the journal writing to the given path, opening it on first use.
+     * Mappers configured with the same path share the journal.
+     */
+    static ChangeJournal open(Path path, long maxFileBytes, int bufferSize) {
+        return openJournals.computeIfAbsent(path.toAbsolutePath(), p -> new ChangeJournal(p, maxFileBytes, bufferSize));
+    }
+
+    /**
+     * Opens the journal configured in the provider's SPI config, or returns {@link #DISABLED} if no path is configured.
+     */
+    static ChangeJournal fromConfig(Config.Scope config) {
+        var path = config.get("journalPath", "");
+        if (path.isBlank()) return DISABLED;
+        return open(Paths.get(path),
+                config.getLong("journalMaxFileBytes", DEFAULT_MAX_FILE_BYTES),
+                config.getInt("journalBufferSize", DEFAULT_BUFFER_SIZE));
+    }
+
+    /**
+     * Returns a recorder that keeps the changes until the session's transaction is committed and discards them on rollback.
+     */
+    ChangeRecorder afterCommit(KeycloakSession session) {
+        if (!isEnabled()) return this;
+        var pendingChanges = new PendingChanges(this);
+        session.getTransactionManager().enlistAfterCompletion(pendingChanges);
+        return pendingChanges;
+    }
+
+    boolean isEnabled() {
+        return buffer != null;
+    }
+
+    @Override
+    public void record(String realmName, String identityProviderAlias, String username, ChangeType type, String key, Collection<String> values) {
+        if (!isEnabled() || values.isEmpty()) return;
+        enqueue(new Record(System.currentTimeMillis(), realmName, identityProviderAlias, username, type, key, List.copyOf(values)));
+    }
+
+    private void enqueue(Record record) {
+        try {
+            if (!buffer.offer(record, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                var dropped = droppedCount.incrementAndGet();
+                logger.warnf("Change journal [%s] buffer is full, dropped %s change of user [%s] (%d dropped in total)", path, record.type, record.user, dropped);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            droppedCount.incrementAndGet();
+        }
+    }
+
+    long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    long getWrittenCount() {
+        return writtenCount.get();
+    }
+
+    /**
+     * Stops the flusher after writing all buffered changes.
+     */
+    void close() {
+        if (!isEnabled() || !running) return;
+        running = false;
+        try {
+            flusher.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        openJournals.remove(path, this);
+    }
+
+    private void flushLoop() {
+        var batch = new ArrayList<Record>(MAX_BATCH_SIZE);
+        while (running || !buffer.isEmpty() || !batch.isEmpty()) {
+            try {
+                if (batch.isEmpty()) {
+                    var first = buffer.poll(FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                    if (first == null) continue;
+                    batch.add(first);
+                    buffer.drainTo(batch, MAX_BATCH_SIZE - 1);
+                }
+                write(batch);
+            } catch (InterruptedException e) {
+                running = false;
+            } catch (IOException e) {
+                closeChannel();
+                if (running) {
+                    logger.errorf(e, "Change journal [%s]: failed to write %d changes, retrying in %d ms", path, batch.size(), RETRY_INTERVAL_MILLIS);
+                    pauseBeforeRetry();
+                } else {
+                    drop(batch, e);
+                }
+            } catch (RuntimeException e) {
+                drop(batch, e);
+            }
+        }
+        closeChannel();
+    }
+
+    private void pauseBeforeRetry() {
+        try {
+            Thread.sleep(RETRY_INTERVAL_MILLIS);
+        } catch (InterruptedException e) {
+            running = false;
+        }
+    }
+
+    private void drop(List<Record> batch, Exception cause) {
+        var dropped = droppedCount.addAndGet(batch.size());
+        logger.errorf(cause, "Change journal [%s]: failed to write %d changes, dropped them (%d dropped in total)", path, batch.size(), dropped);
+        batch.clear();
+    }
+
+    /**
+     * Appends the batch, removing the records from it once they are written, so that a retry does not write them twice.
+     */
+    private void write(List<Record> batch) throws IOException {
+        var channel = channel();
+        var bytes = new ByteArrayOutputStream();
+        var appendedCount = 0;
+        try {
+            for (int i = 0; i < batch.size(); i++) {
+                var line = JsonSerialization.writeValueAsBytes(batch.get(i));
+                if (channel.size() + bytes.size() + line.length + 1 > maxFileBytes && channel.size() + bytes.size() > 0) {
+                    append(channel, bytes);
+                    appendedCount = i;
+                    rotate();
+                    channel = channel();
+                }
+                bytes.write(line);
+                bytes.write('\n');
+            }
+            append(channel, bytes);
+            appendedCount = batch.size();
+        } finally {
+            writtenCount.addAndGet(appendedCount);
+            batch.subList(0, appendedCount).clear();
+        }
+    }
+
+    private void append(FileChannel channel, ByteArrayOutputStream bytes) throws IOException {
+        if (bytes.size() == 0) return;
+        var buffer = ByteBuffer.wrap(bytes.toByteArray());
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        channel.force(false);
+        bytes.reset();
+    }
+
+    private FileChannel channel() throws IOException {
+        if (channel == null) {
+            if (path.getParent() != null) Files.createDirectories(path.getParent());
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+        return channel;
+    }
+
+    private void rotate() throws IOException {
+        closeChannel();
+        var rotated = rotatedPath(path, Instant.now());
+        var target = rotated;
+        for (int i = 1; Files.exists(target); i++) {
+            target = rotated.resolveSibling(rotated.getFileName() + "-" + i);
+        }
+        Files.move(path, target);
+    }
+
+    private void closeChannel() {
+        if (channel == null) return;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.warnf(e, "Change journal [%s]: failed to close file", path);
+        }
+        channel = null;
+    }
+
+    static Path rotatedPath(Path path, Instant rotationTime) {
+        return path.resolveSibling(path.getFileName() + "." + ROTATION_TIME_FORMAT.format(rotationTime));
+    }
+
+    /**
+     * Returns the rotated files of the journal, oldest first.
+     */
+    static List<Path> rotatedPaths(Path path) throws IOException {
+        var directory = path.toAbsolutePath().getParent();
+        if (!Files.isDirectory(directory)) return List.of();
+        var prefix = path.getFileName() + ".";
+        try (var files = Files.list(directory)) {
+            return files.filter(file -> file.getFileName().toString().startsWith(prefix)
+                            && ROTATION_SUFFIX.matcher(file.getFileName().toString().substring(prefix.length())).matches())
+                    .sorted(Comparator.comparing(file -> file.getFileName().toString()))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Changes of a single transaction, written to the journal once the transaction is committed.
+     */
+    private static class PendingChanges extends AbstractKeycloakTransaction implements ChangeRecorder {
+        private final ChangeJournal journal;
+        private final List<Record> records = new ArrayList<>();
+
+        PendingChanges(ChangeJournal journal) {
+            this.journal = journal;
+        }
+
+        @Override
+        public void record(String realmName, String identityProviderAlias, String username, ChangeType type, String key, Collection<String> values) {
+            if (values.isEmpty()) return;
+            records.add(new Record(System.currentTimeMillis(), realmName, identityProviderAlias, username, type, key, List.copyOf(values)));
+        }
+
+        @Override
+        protected void commitImpl() {
+            records.forEach(journal::enqueue);
+            records.clear();
+        }
+
+        @Override
+        protected void rollbackImpl() {
+            records.clear();
+        }
+    }
+
+    enum ChangeType {
+        GROUP_CREATED, GROUP_RENAMED, GROUP_JOINED, GROUP_LEFT, MEMBERSHIP_EXPIRED, ATTRIBUTE_SET, ATTRIBUTE_REMOVED, GROUP_ATTRIBUTES_SET
+    }
+
+    /**
+     * A single change. The fields are public so that they are (de)serialized as they are.
+     */
+    static class Record {
+        public long timestamp;
+        public String realm;
+        public String idp;
+        public String user;
+        public ChangeType type;
+        public String key;
+        public List<String> values;
+
+        Record() {
+        }
+
+        Record(long timestamp, String realm, String idp, String user, ChangeType type, String key, List<String> values) {
+            this.timestamp = timestamp;
+            this.realm = realm;
+            this.idp = idp;
+            this.user = user;
+            this.type = type;
+            this.key = key;
+            this.values = values;
+        }
+    }
+}
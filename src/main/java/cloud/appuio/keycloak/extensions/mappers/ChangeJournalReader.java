@@ -0,0 +1,63 @@
+package cloud.appuio.keycloak.extensions.mappers;
+
+import org.keycloak.util.JsonSerialization;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.stream.Stream;
+
+/**
+ * Reads a {@link ChangeJournal} including its rotated files, oldest change first.
+ * <p>
+ * Run it from the command line to print the journal, optionally limited to a single user:
+ * {@code java -cp appuio-keycloak-extensions.jar:keycloak-core.jar:... cloud.appuio.keycloak.extensions.mappers.ChangeJournalReader <journal file> [username]}
+ */
+public class ChangeJournalReader {
+
+    private ChangeJournalReader() {
+    }
+
+    static Stream<ChangeJournal.Record> read(Path path) throws IOException {
+        var files = new ArrayList<>(ChangeJournal.rotatedPaths(path));
+        if (Files.exists(path)) files.add(path);
+        return files.stream()
+                .flatMap(ChangeJournalReader::lines)
+                .filter(line -> !line.isBlank())
+                .map(ChangeJournalReader::parse);
+    }
+
+    private static Stream<String> lines(Path file) {
+        try {
+            return Files.lines(file);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static ChangeJournal.Record parse(String line) {
+        try {
+            return JsonSerialization.readValue(line, ChangeJournal.Record.class);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: ChangeJournalReader <journal file> [username]");
+            System.exit(1);
+        }
+        var username = args.length > 1 ? args[1] : null;
+        try (var records = read(Paths.get(args[0]))) {
+            records.filter(record -> username == null || username.equals(record.user))
+                    .forEach(record -> System.out.printf("%s\t%s\t%s\t%s\t%s\t%s\t%s%n",
+                            Instant.ofEpochMilli(record.timestamp), record.realm, record.idp, record.user, record.type,
+                            record.key == null ? "" : record.key, String.join(", ", record.values)));
+        }
+    }
+}
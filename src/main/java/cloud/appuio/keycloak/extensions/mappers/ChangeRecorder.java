@@ -0,0 +1,16 @@
+package cloud.appuio.keycloak.extensions.mappers;
+
+import java.util.Collection;
+
+/**
+ * Records a change made by a mapper, see {@link ChangeJournal}.
+ */
+interface ChangeRecorder {
+
+    /**
+     * @param key    the changed user attribute, the group whose attributes were set or the previous group name, null for membership changes.
+     * @param values the affected group names, the new or removed attribute values or the group attributes as 'name=value'.
+     *               Nothing is recorded if empty.
+     */
+    void record(String realmName, String identityProviderAlias, String username, ChangeJournal.ChangeType type, String key, Collection<String> values);
+}
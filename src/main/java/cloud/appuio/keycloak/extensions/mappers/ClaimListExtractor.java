@@ -1,32 +1,36 @@
 package cloud.appuio.keycloak.extensions.mappers;
 
-import org.keycloak.broker.oidc.mappers.AbstractClaimMapper;
+import org.jboss.logging.Logger;
 import org.keycloak.broker.provider.BrokeredIdentityContext;
 
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 class ClaimListExtractor {
+    private static final Logger logger = Logger.getLogger(ClaimListExtractor.class);
 
     static Optional<List<String>> extractClaim(BrokeredIdentityContext context, String claimName) {
-        var claim = AbstractClaimMapper.getClaimValue(context, claimName);
-        if (claim == null) {
+        ClaimPath claimPath;
+        try {
+            claimPath = ClaimPath.compile(claimName);
+        } catch (IllegalArgumentException e) {
+            logger.warnf("Invalid claim path, ignoring: %s", e.getMessage());
             return Optional.empty();
         }
-        return Optional.of(toListFromClaim(claim));
+        return claimPath.select(context);
     }
 
-    private static List<String> toListFromClaim(Object claim) {
-        // convert to string list if not list
-        if (List.class.isAssignableFrom(claim.getClass())) {
-            return castToList(claim);
+    /**
+     * Returns the values of the value claim by the value of the key claim of the same claim element, see {@link ClaimPath#selectPairs}.
+     */
+    static Optional<Map<String, String>> extractClaimPairs(BrokeredIdentityContext context, String keyClaimName, String valueClaimName) {
+        try {
+            return ClaimPath.compile(keyClaimName).selectPairs(context, ClaimPath.compile(valueClaimName));
+        } catch (IllegalArgumentException e) {
+            logger.warnf("Invalid claim path, ignoring: %s", e.getMessage());
+            return Optional.empty();
         }
-        return List.of(claim.toString());
-    }
-
-    @SuppressWarnings("unchecked")
-    private static List<String> castToList(Object newGroupsObj) {
-        return (List<String>) newGroupsObj;
     }
 
 }
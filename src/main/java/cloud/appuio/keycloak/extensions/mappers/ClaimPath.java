@@ -0,0 +1,476 @@
+package cloud.appuio.keycloak.extensions.mappers;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.keycloak.broker.oidc.KeycloakOIDCIdentityProvider;
+import org.keycloak.broker.oidc.OIDCIdentityProvider;
+import org.keycloak.broker.provider.BrokeredIdentityContext;
+import org.keycloak.representations.JsonWebToken;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * A claim path expression compiled once into a sequence of steps that walk the token JSON directly.
+ * <p>
+ * Besides plain nesting ({@code address.locality}, a literal dot is escaped with {@code \.}) the following selectors are supported:
+ * <ul>
+ *     <li>{@code groups[*]} selects all elements of an array,</li>
+ *     <li>{@code groups[0]} selects the array element at the given index,</li>
+ *     <li>{@code tenants.*} selects the values of all fields of an object,</li>
+ *     <li>{@code groups[?type=team]} selects the array elements whose field {@code type} equals {@code team}.</li>
+ * </ul>
+ * Selectors can be combined, e.g. {@code groups[?type=team].displayName} or {@code tenants.*.roles[*]}.
+ */
+class ClaimPath {
+
+    private static final Map<String, ClaimPath> compiledPaths = new ConcurrentHashMap<>();
+
+    private static final String[] TOKEN_KEYS = {
+            KeycloakOIDCIdentityProvider.VALIDATED_ACCESS_TOKEN,
+            OIDCIdentityProvider.VALIDATED_ID_TOKEN
+    };
+
+    private final String expression;
+    private final List<Step> steps;
+    private final boolean multiValued;
+    private final int leadingSingleSteps;
+    private final int elementSteps;
+
+    private ClaimPath(String expression, List<Step> steps) {
+        this.expression = expression;
+        this.steps = steps;
+        var leading = 0;
+        while (leading < steps.size() && steps.get(leading) instanceof SingleStep) leading++;
+        this.leadingSingleSteps = leading;
+        this.multiValued = leading < steps.size();
+        var elements = steps.size();
+        while (elements > 0 && steps.get(elements - 1) instanceof SingleStep) elements--;
+        this.elementSteps = elements;
+    }
+
+    /**
+     * Returns the compiled path for the given expression.
+     * Each distinct expression is parsed only once.
+     *
+     * @throws IllegalArgumentException if the expression is malformed.
+     */
+    static ClaimPath compile(String expression) {
+        return compiledPaths.computeIfAbsent(expression, ClaimPath::parse);
+    }
+
+    /**
+     * Selects the claim values from the validated access token, the validated ID token or the user info, in that order.
+     *
+     * @return empty if none of the sources contain the claim, otherwise the selected values (which can be an empty list).
+     */
+    Optional<List<String>> select(BrokeredIdentityContext context) {
+        var contextData = context.getContextData();
+        for (var key : TOKEN_KEYS) {
+            var token = (JsonWebToken) contextData.get(key);
+            if (token == null) continue;
+            var values = select(rootOf(token));
+            if (values.isPresent()) return values;
+        }
+        return select(contextData.get(OIDCIdentityProvider.USER_INFO));
+    }
+
+    /**
+     * Selects the claim values from a JSON structure given as nested {@link Map}s and {@link List}s or as {@link JsonNode}.
+     */
+    Optional<List<String>> select(Object root) {
+        if (root == null || steps.isEmpty()) return Optional.empty();
+        return multiValued ? selectMultiple(root) : selectSingle(root);
+    }
+
+    /**
+     * Selects the values of this path together with the values of the given path that stem from the same claim element,
+     * e.g. the id and the display name of each group with {@code groups[*].id} and {@code groups[*].displayName}.
+     * Elements that lack either value or have multiple values are skipped, so the values are never paired with those of another element.
+     * Paths without selectors, e.g. {@code group_ids} and {@code group_names}, are paired by position if they select the same number of values.
+     * Both paths are evaluated on the first source that contains this path, in the same order as {@link #select(BrokeredIdentityContext)}.
+     *
+     * @return the values of the given path by the value of this path, or empty if the paths do not select the same elements
+     * or the values cannot be paired.
+     */
+    Optional<Map<String, String>> selectPairs(BrokeredIdentityContext context, ClaimPath valuePath) {
+        if (elementSteps != valuePath.elementSteps || !steps.subList(0, elementSteps).equals(valuePath.steps.subList(0, elementSteps))) {
+            return Optional.empty();
+        }
+        var contextData = context.getContextData();
+        for (var key : TOKEN_KEYS) {
+            var token = (JsonWebToken) contextData.get(key);
+            if (token == null) continue;
+            var root = rootOf(token);
+            if (select(root).isPresent()) return selectPairs(root, valuePath);
+        }
+        return selectPairs(contextData.get(OIDCIdentityProvider.USER_INFO), valuePath);
+    }
+
+    private Optional<Map<String, String>> selectPairs(Object root, ClaimPath valuePath) {
+        if (elementSteps == 0) {
+            var keys = select(root);
+            var values = valuePath.select(root);
+            if (keys.isEmpty() || values.isEmpty() || keys.get().size() != values.get().size()) return Optional.empty();
+            var pairs = new LinkedHashMap<String, String>();
+            for (int i = 0; i < keys.get().size(); i++) {
+                pairs.putIfAbsent(keys.get().get(i), values.get().get(i));
+            }
+            return Optional.of(pairs);
+        }
+        var node = resolveLeadingSteps(root);
+        if (node == null) return Optional.empty();
+        var pairs = new LinkedHashMap<String, String>();
+        walk(node, leadingSingleSteps, elementSteps, element -> {
+            var key = resolveElementValue(element);
+            var value = valuePath.resolveElementValue(element);
+            if (key != null && value != null) pairs.putIfAbsent(key, value);
+        });
+        return Optional.of(pairs);
+    }
+
+    /**
+     * @return the single value the steps after the last selector resolve to, or null if a step is missing or the value is not scalar.
+     */
+    private String resolveElementValue(Object element) {
+        var node = element;
+        for (int i = elementSteps; i < steps.size() && node != null; i++) {
+            node = ((SingleStep) steps.get(i)).resolve(node);
+        }
+        if (node == null || node instanceof Collection || node instanceof Map) return null;
+        if (node instanceof JsonNode && !((JsonNode) node).isValueNode()) return null;
+        return textOf(node);
+    }
+
+    private Object rootOf(JsonWebToken token) {
+        var first = steps.get(0);
+        if (first instanceof FieldStep && "sub".equals(((FieldStep) first).name)
+                && !token.getOtherClaims().containsKey("sub") && token.getSubject() != null) {
+            return Map.of("sub", token.getSubject());
+        }
+        return token.getOtherClaims();
+    }
+
+    /**
+     * @return empty if any step of the path is missing, so that the next source is consulted.
+     */
+    private Optional<List<String>> selectSingle(Object root) {
+        var node = resolveLeadingSteps(root);
+        if (node == null) return Optional.empty();
+        if (node instanceof List) {
+            return Optional.of(castToList(node));
+        }
+        var sink = new ArrayList<String>(1);
+        addLeaf(node, sink);
+        return Optional.of(sink);
+    }
+
+    /**
+     * @return empty if any step before the first selector is missing, so that the next source is consulted.
+     * Elements that lack a step after a selector are skipped.
+     */
+    private Optional<List<String>> selectMultiple(Object root) {
+        var node = resolveLeadingSteps(root);
+        if (node == null) return Optional.empty();
+        var sink = new ArrayList<String>();
+        walk(node, leadingSingleSteps, steps.size(), leaf -> addLeaf(leaf, sink));
+        return Optional.of(sink);
+    }
+
+    private Object resolveLeadingSteps(Object root) {
+        Object node = root;
+        for (int i = 0; i < leadingSingleSteps && node != null; i++) {
+            node = ((SingleStep) steps.get(i)).resolve(node);
+        }
+        return node;
+    }
+
+    private void walk(Object node, int index, int end, Consumer<Object> consumer) {
+        if (node == null) return;
+        if (index == end) {
+            consumer.accept(node);
+            return;
+        }
+        steps.get(index).apply(node, child -> walk(child, index + 1, end, consumer));
+    }
+
+    private static void addLeaf(Object node, List<String> sink) {
+        if (node instanceof JsonNode) {
+            var json = (JsonNode) node;
+            if (json.isArray()) {
+                json.forEach(element -> sink.add(textOf(element)));
+            } else if (!json.isNull() && !json.isMissingNode()) {
+                sink.add(textOf(json));
+            }
+        } else if (node instanceof Collection) {
+            for (var element : (Collection<?>) node) {
+                if (element != null) sink.add(textOf(element));
+            }
+        } else {
+            sink.add(textOf(node));
+        }
+    }
+
+    private static String textOf(Object node) {
+        if (node instanceof JsonNode && ((JsonNode) node).isValueNode()) {
+            return ((JsonNode) node).asText();
+        }
+        return node.toString();
+    }
+
+    private static Object fieldOf(Object node, String name) {
+        if (node instanceof Map) {
+            return ((Map<?, ?>) node).get(name);
+        }
+        if (node instanceof JsonNode) {
+            var child = ((JsonNode) node).get(name);
+            return child == null || child.isNull() ? null : child;
+        }
+        return null;
+    }
+
+    private static void forEachElement(Object node, Consumer<Object> consumer) {
+        if (node instanceof List) {
+            ((List<?>) node).forEach(consumer);
+        } else if (node instanceof JsonNode && ((JsonNode) node).isArray()) {
+            ((JsonNode) node).forEach(consumer);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<String> castToList(Object list) {
+        return (List<String>) list;
+    }
+
+    @Override
+    public String toString() {
+        return expression;
+    }
+
+    // Steps
+
+    private interface Step {
+        void apply(Object node, Consumer<Object> next);
+    }
+
+    private interface SingleStep extends Step {
+        Object resolve(Object node);
+
+        @Override
+        default void apply(Object node, Consumer<Object> next) {
+            var child = resolve(node);
+            if (child != null) next.accept(child);
+        }
+    }
+
+    private static class FieldStep implements SingleStep {
+        private final String name;
+
+        FieldStep(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof FieldStep && name.equals(((FieldStep) o).name);
+        }
+
+        @Override
+        public int hashCode() {
+            return name.hashCode();
+        }
+
+        @Override
+        public Object resolve(Object node) {
+            return fieldOf(node, name);
+        }
+    }
+
+    private static class IndexStep implements SingleStep {
+        private final int index;
+
+        IndexStep(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof IndexStep && index == ((IndexStep) o).index;
+        }
+
+        @Override
+        public int hashCode() {
+            return index;
+        }
+
+        @Override
+        public Object resolve(Object node) {
+            if (node instanceof List) {
+                var list = (List<?>) node;
+                return index < list.size() ? list.get(index) : null;
+            }
+            if (node instanceof JsonNode && ((JsonNode) node).isArray()) {
+                return ((JsonNode) node).get(index);
+            }
+            return null;
+        }
+    }
+
+    private static class ElementsStep implements Step {
+        @Override
+        public void apply(Object node, Consumer<Object> next) {
+            forEachElement(node, next);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof ElementsStep;
+        }
+
+        @Override
+        public int hashCode() {
+            return ElementsStep.class.hashCode();
+        }
+    }
+
+    private static class ValuesStep implements Step {
+        @Override
+        public void apply(Object node, Consumer<Object> next) {
+            if (node instanceof Map) {
+                ((Map<?, ?>) node).values().forEach(next);
+            } else if (node instanceof JsonNode && ((JsonNode) node).isObject()) {
+                ((JsonNode) node).forEach(next);
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof ValuesStep;
+        }
+
+        @Override
+        public int hashCode() {
+            return ValuesStep.class.hashCode();
+        }
+    }
+
+    private static class FilterStep implements Step {
+        private final String field;
+        private final String value;
+
+        FilterStep(String field, String value) {
+            this.field = field;
+            this.value = value;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof FilterStep && field.equals(((FilterStep) o).field) && value.equals(((FilterStep) o).value);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(field, value);
+        }
+
+        @Override
+        public void apply(Object node, Consumer<Object> next) {
+            forEachElement(node, element -> {
+                var candidate = fieldOf(element, field);
+                if (candidate != null && value.equals(textOf(candidate))) {
+                    next.accept(element);
+                }
+            });
+        }
+    }
+
+    // Parser
+
+    private static ClaimPath parse(String expression) {
+        if (expression == null || expression.isEmpty()) {
+            throw new IllegalArgumentException("claim path is empty");
+        }
+        var steps = new ArrayList<Step>();
+        var name = new StringBuilder();
+        var escapedSegment = false;
+        int i = 0;
+        while (i < expression.length()) {
+            var c = expression.charAt(i);
+            if (c == '\\') {
+                if (i + 1 == expression.length()) {
+                    throw new IllegalArgumentException(String.format("claim path [%s]: dangling escape character", expression));
+                }
+                name.append(expression.charAt(i + 1));
+                escapedSegment = true;
+                i += 2;
+            } else if (c == '.') {
+                addNameStep(expression, steps, name, escapedSegment, true);
+                name.setLength(0);
+                escapedSegment = false;
+                i++;
+            } else if (c == '[') {
+                addNameStep(expression, steps, name, escapedSegment, false);
+                name.setLength(0);
+                escapedSegment = false;
+                var end = expression.indexOf(']', i);
+                if (end < 0) {
+                    throw new IllegalArgumentException(String.format("claim path [%s]: unclosed '[' at position %d", expression, i));
+                }
+                steps.add(parseSelector(expression, expression.substring(i + 1, end)));
+                i = end + 1;
+                if (i < expression.length() && expression.charAt(i) != '.' && expression.charAt(i) != '[') {
+                    throw new IllegalArgumentException(String.format("claim path [%s]: unexpected character at position %d", expression, i));
+                }
+                if (i < expression.length() && expression.charAt(i) == '.') {
+                    if (i + 1 == expression.length()) {
+                        throw new IllegalArgumentException(String.format("claim path [%s]: empty segment", expression));
+                    }
+                    i++;
+                }
+            } else {
+                name.append(c);
+                i++;
+            }
+        }
+        if (name.length() > 0 || !expression.endsWith("]")) {
+            addNameStep(expression, steps, name, escapedSegment, true);
+        }
+        return new ClaimPath(expression, List.copyOf(steps));
+    }
+
+    private static void addNameStep(String expression, List<Step> steps, StringBuilder name, boolean escaped, boolean required) {
+        if (!escaped && "*".contentEquals(name)) {
+            steps.add(new ValuesStep());
+        } else if (name.length() > 0) {
+            steps.add(new FieldStep(name.toString()));
+        } else if (required || steps.isEmpty()) {
+            throw new IllegalArgumentException(String.format("claim path [%s]: empty segment", expression));
+        }
+    }
+
+    private static Step parseSelector(String expression, String selector) {
+        if ("*".equals(selector)) {
+            return new ElementsStep();
+        }
+        if (selector.startsWith("?")) {
+            var separator = selector.indexOf('=');
+            if (separator <= 1) {
+                throw new IllegalArgumentException(String.format("claim path [%s]: filter [%s] must have the form '?field=value'", expression, selector));
+            }
+            return new FilterStep(selector.substring(1, separator), selector.substring(separator + 1));
+        }
+        try {
+            var index = Integer.parseInt(selector);
+            if (index < 0) throw new NumberFormatException();
+            return new IndexStep(index);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(String.format("claim path [%s]: invalid selector [%s]", expression, selector));
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package cloud.appuio.keycloak.extensions.mappers;
 
 import org.jboss.logging.Logger;
+import org.keycloak.Config;
 import org.keycloak.broker.oidc.KeycloakOIDCIdentityProviderFactory;
 import org.keycloak.broker.oidc.OIDCIdentityProviderFactory;
 import org.keycloak.broker.oidc.mappers.AbstractClaimMapper;
@@ -11,22 +12,33 @@ import org.keycloak.provider.ProviderConfigProperty;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 public class ClaimToAttributeMapper extends AbstractClaimMapper {
     private static final Logger logger = Logger.getLogger(ClaimToAttributeMapper.class);
 
+    private ChangeJournal journal = ChangeJournal.DISABLED;
+
+    @Override
+    public void init(Config.Scope config) {
+        journal = ChangeJournal.fromConfig(config);
+    }
+
     @Override
     public void importNewUser(KeycloakSession session, RealmModel realm, UserModel user, IdentityProviderMapperModel mapperModel, BrokeredIdentityContext context) {
-        this.extractClaimToAttribute(realm, mapperModel, user, new MapperConfig(mapperModel.getConfig()), context);
+        this.extractClaimToAttribute(session, realm, mapperModel, user, new MapperConfig(mapperModel.getConfig()), context);
     }
 
     @Override
     public void updateBrokeredUser(KeycloakSession session, RealmModel realm, UserModel user, IdentityProviderMapperModel mapperModel, BrokeredIdentityContext context) {
-        this.extractClaimToAttribute(realm, mapperModel, user, new MapperConfig(mapperModel.getConfig()), context);
+        this.extractClaimToAttribute(session, realm, mapperModel, user, new MapperConfig(mapperModel.getConfig()), context);
     }
 
-    void extractClaimToAttribute(RealmModel realm, IdentityProviderMapperModel mapperModel, UserModel user, MapperConfig config, BrokeredIdentityContext context) {
+    void extractClaimToAttribute(KeycloakSession session, RealmModel realm, IdentityProviderMapperModel mapperModel, UserModel user, MapperConfig config, BrokeredIdentityContext context) {
         // abort if mapper is configured incorrectly.
         if (config.getClaimName().equals("")) return;
         if (config.getTargetAttributeKey().equals("")) return;
@@ -38,42 +50,127 @@ public class ClaimToAttributeMapper extends AbstractClaimMapper {
                     realm.getName(), mapperModel.getIdentityProviderAlias(), config.getClaimName(), user.getUsername());
             return;
         }
-        assignClaimToAttribute(realm.getName(), mapperModel.getIdentityProviderAlias(), user, claim.get(), config);
+        assignClaimToAttribute(realm.getName(), mapperModel.getIdentityProviderAlias(), user, claim.get(), config, journal.afterCommit(session));
     }
 
     void assignClaimToAttribute(String realmName, String identityProviderAlias, UserModel user, List<String> claimEntries, MapperConfig config) {
-        var attributes = user.getAttributeStream(config.getTargetAttributeKey()).collect(Collectors.toSet());
-        var isAttributeAlreadyDefined = attributes.stream().anyMatch(value -> !"".equals(value));
+        assignClaimToAttribute(realmName, identityProviderAlias, user, claimEntries, config, journal);
+    }
+
+    private void assignClaimToAttribute(String realmName, String identityProviderAlias, UserModel user, List<String> claimEntries, MapperConfig config, ChangeRecorder changes) {
+        var currentValues = user.getAttributeStream(config.getTargetAttributeKey()).collect(Collectors.toList());
+        var isAttributeAlreadyDefined = currentValues.stream().anyMatch(value -> !"".equals(value));
         if (!config.enabledAttributeOverwrite() && isAttributeAlreadyDefined) {
             logger.debugf("Realm [%s], IdP [%s]: Attribute [%s] is already set for user [%s]: [%s]",
-                    realmName, identityProviderAlias, config.getTargetAttributeKey(), user.getUsername(), String.join(", ", attributes)
+                    realmName, identityProviderAlias, config.getTargetAttributeKey(), user.getUsername(), String.join(", ", currentValues)
             );
             return;
         }
-        var formatter = new GroupNameFormatter()
-                .withToLowerCase(config.enabledToLowerCase())
-                .withTrimWhitespace(config.enabledTrimWhitespace())
-                .withTrimPrefix(config.getTrimPrefix());
-        var filteredGroups = claimEntries.stream()
-                .filter(this::ignoreEmptyEntries)
-                .filter(group -> ignoreEntriesThatMatchRegex(config, group))
-                .filter(group -> includeEntriesThatMatchRegex(config, group))
-                .map(formatter::format)
-                .collect(Collectors.toList());
-
-        if (filteredGroups.size() != 1) {
-            if (!isAttributeAlreadyDefined) {
-                logger.infof("Realm [%s], IdP [%s]: Cannot reduce claim entries list to one entry for [%s]. Claim has following entries after reduction: [%s].",
-                        realmName, identityProviderAlias, user.getUsername(), String.join(", ", filteredGroups));
-            }
+        GroupNameFormatter formatter;
+        try {
+            formatter = new GroupNameFormatter()
+                    .withToLowerCase(config.enabledToLowerCase())
+                    .withTrimWhitespace(config.enabledTrimWhitespace())
+                    .withTrimPrefix(config.getTrimPrefix())
+                    .withRewriteRules(config.getRewriteRules());
+        } catch (IllegalArgumentException e) {
+            logger.warnf("Realm [%s], IdP [%s]: Invalid formatting config, ignoring user [%s]: %s",
+                    realmName, identityProviderAlias, user.getUsername(), e.getMessage());
+            return;
+        }
+        Optional<String> selectedEntry;
+        switch (config.getSelectionMode()) {
+            case FIRST:
+                selectedEntry = formatEntries(filterEntries(claimEntries.stream(), config), formatter).findFirst();
+                break;
+            case LAST:
+                var reversedEntries = IntStream.range(0, claimEntries.size()).mapToObj(i -> claimEntries.get(claimEntries.size() - 1 - i));
+                selectedEntry = formatEntries(filterEntries(reversedEntries, config), formatter).findFirst();
+                break;
+            case JOIN:
+                var joinedEntries = formatEntries(filterEntries(claimEntries.stream(), config), formatter)
+                        .collect(Collectors.joining(config.getJoinSeparator()));
+                selectedEntry = Optional.of(joinedEntries).filter(this::ignoreEmptyEntries);
+                break;
+            case PRIORITY:
+                List<Pattern> patterns;
+                try {
+                    patterns = config.getPriorityPatterns();
+                } catch (IllegalArgumentException e) {
+                    logger.warnf("Realm [%s], IdP [%s]: Invalid priority patterns, ignoring user [%s]: %s",
+                            realmName, identityProviderAlias, user.getUsername(), e.getMessage());
+                    return;
+                }
+                selectedEntry = selectByPriority(claimEntries, patterns, config, formatter);
+                break;
+            default:
+                var filteredGroups = formatEntries(filterEntries(claimEntries.stream(), config), formatter)
+                        .collect(Collectors.toList());
+                if (filteredGroups.size() != 1) {
+                    if (!isAttributeAlreadyDefined) {
+                        logger.infof("Realm [%s], IdP [%s]: Cannot reduce claim entries list to one entry for [%s]. Claim has following entries after reduction: [%s].",
+                                realmName, identityProviderAlias, user.getUsername(), String.join(", ", filteredGroups));
+                    }
+                    return;
+                }
+                selectedEntry = Optional.of(filteredGroups.get(0));
+        }
+        if (selectedEntry.isEmpty()) {
+            logger.debugf("Realm [%s], IdP [%s]: No claim entry selected for [%s] in mode [%s].",
+                    realmName, identityProviderAlias, user.getUsername(), config.getSelectionMode());
+            return;
+        }
+        var groupName = selectedEntry.get();
+        if (currentValues.equals(List.of(groupName))) {
+            logger.debugf("Realm [%s], IdP [%s]: Attribute [%s] of [%s] is already [%s].",
+                    realmName, identityProviderAlias, config.getTargetAttributeKey(), user.getUsername(), groupName);
             return;
         }
-        var groupName = filteredGroups.get(0);
         user.setAttribute(config.getTargetAttributeKey(), List.of(groupName));
+        changes.record(realmName, identityProviderAlias, user.getUsername(), ChangeJournal.ChangeType.ATTRIBUTE_SET, config.getTargetAttributeKey(), List.of(groupName));
         logger.debugf("Realm [%s], IdP [%s]: Set the attribute [%s] for [%s] to [%s].",
                 realmName, identityProviderAlias, config.getTargetAttributeKey(), user.getUsername(), groupName);
     }
 
+    private Stream<String> filterEntries(Stream<String> claimEntries, MapperConfig config) {
+        return claimEntries
+                .filter(this::ignoreEmptyEntries)
+                .filter(group -> ignoreEntriesThatMatchRegex(config, group))
+                .filter(group -> includeEntriesThatMatchRegex(config, group));
+    }
+
+    private Stream<String> formatEntries(Stream<String> claimEntries, GroupNameFormatter formatter) {
+        return claimEntries
+                .map(formatter::rewrite)
+                .flatMap(Optional::stream);
+    }
+
+    /**
+     * Selects the entry that matches the pattern with the highest priority, the first entry wins in case of a tie.
+     * Entries are only compared against patterns of higher priority than the current winner,
+     * and the search stops as soon as an entry matches the first pattern.
+     * Only entries that become the new winner are formatted.
+     */
+    private Optional<String> selectByPriority(List<String> claimEntries, List<Pattern> patterns, MapperConfig config, GroupNameFormatter formatter) {
+        String selectedEntry = null;
+        var selectedPriority = patterns.size();
+        var iterator = filterEntries(claimEntries.stream(), config).iterator();
+        while (selectedPriority > 0 && iterator.hasNext()) {
+            var entry = iterator.next();
+            for (int priority = 0; priority < selectedPriority; priority++) {
+                if (patterns.get(priority).matcher(entry).matches()) {
+                    var formatted = formatter.rewrite(entry);
+                    if (formatted.isPresent()) {
+                        selectedEntry = formatted.get();
+                        selectedPriority = priority;
+                    }
+                    break;
+                }
+            }
+        }
+        return Optional.ofNullable(selectedEntry);
+    }
+
     private boolean ignoreEntriesThatMatchRegex(MapperConfig config, String groupModel) {
         return !groupModel.matches(config.getIgnoreEntriesPattern());
     }
@@ -102,7 +199,7 @@ public class ClaimToAttributeMapper extends AbstractClaimMapper {
     public String getHelpText() {
         return "Extracts a claim from a user and updates a user's attribute. " +
                 "If the claim is a list of strings it tries to reduce entries to one entry only. " +
-                "However it does nothing if there are zero or multiple entries. " +
+                "By default it does nothing if there are zero or multiple entries, see the selection mode for alternatives. " +
                 "Use the ignore entries config option to exclude irrelevant entries.";
     }
 
@@ -110,6 +207,15 @@ public class ClaimToAttributeMapper extends AbstractClaimMapper {
     public static final String SEARCH_ENTRIES_PROPERTY = "search_entries";
     public static final String TARGET_ATTRIBUTE_PROPERTY = "target_attribute";
     public static final String OVERWRITE_ATTRIBUTE_PROPERTY = "overwrite_attribute";
+    public static final String SELECTION_MODE_PROPERTY = "selection_mode";
+    public static final String PRIORITY_PATTERNS_PROPERTY = "priority_patterns";
+    public static final String JOIN_SEPARATOR_PROPERTY = "join_separator";
+
+    private static final ParsedConfigCache<List<Pattern>> parsedPriorityPatterns = new ParsedConfigCache<>(value ->
+            Constants.CFG_DELIMITER_PATTERN.splitAsStream(value)
+                    .filter(pattern -> !pattern.isBlank())
+                    .map(Pattern::compile)
+                    .collect(Collectors.toUnmodifiableList()));
 
     @Override
     public List<ProviderConfigProperty> getConfigProperties() {
@@ -144,10 +250,34 @@ public class ClaimToAttributeMapper extends AbstractClaimMapper {
         );
         claimProperty.setHelpText("Name of the claim to search for in token. " +
                 "You can reference nested claims using a '.', i.e. 'address.locality'. " +
-                "To use dot (.) literally, escape it with backslash (\\.)"
+                "To use dot (.) literally, escape it with backslash (\\.). " +
+                "Use '[*]' to select all array elements, '[?field=value]' to select matching array elements " +
+                "and '*' to select all values of an object, i.e. 'groups[?type=team].displayName'."
+        );
+
+        var selectionMode = new ProviderConfigProperty(
+                SELECTION_MODE_PROPERTY, "Selection mode", null, ProviderConfigProperty.LIST_TYPE, SelectionMode.UNIQUE.value
+        );
+        selectionMode.setOptions(Arrays.stream(SelectionMode.values()).map(mode -> mode.value).collect(Collectors.toList()));
+        selectionMode.setHelpText("How to reduce the remaining claim entries to one value. " +
+                "'unique' only sets the attribute if exactly one entry remains. " +
+                "'first' and 'last' take the first or last remaining entry. " +
+                "'join' joins all remaining entries with the join separator. " +
+                "'priority' takes the entry matching the first of the priority patterns, the first entry wins if several entries match the same pattern.");
+
+        var priorityPatterns = new ProviderConfigProperty(
+                PRIORITY_PATTERNS_PROPERTY, "Priority patterns", null, ProviderConfigProperty.MULTIVALUED_STRING_TYPE, null
+        );
+        priorityPatterns.setHelpText("Ordered list of regex patterns used by the 'priority' selection mode, highest priority first. " +
+                "The patterns are matched against each claim entry before being trimmed or formatted.");
+
+        var joinSeparator = new ProviderConfigProperty(
+                JOIN_SEPARATOR_PROPERTY, "Join separator", null, ProviderConfigProperty.STRING_TYPE, ","
         );
+        joinSeparator.setHelpText("Separator used by the 'join' selection mode.");
 
-        return List.of(claimProperty, targetAttribute, overwriteAttribute, ignoreEntries, searchEntries, GroupNameFormatter.TO_LOWERCASE, GroupNameFormatter.TRIM_WHITESPACE, GroupNameFormatter.TRIM_PREFIX);
+        return List.of(claimProperty, targetAttribute, overwriteAttribute, ignoreEntries, searchEntries, selectionMode, priorityPatterns, joinSeparator,
+                GroupNameFormatter.TO_LOWERCASE, GroupNameFormatter.TRIM_WHITESPACE, GroupNameFormatter.TRIM_PREFIX, GroupNameFormatter.REWRITE_RULES);
     }
 
     static class MapperConfig {
@@ -173,6 +303,10 @@ public class ClaimToAttributeMapper extends AbstractClaimMapper {
             return map.getOrDefault(GroupNameFormatter.TRIM_PREFIX_PROPERTY, "");
         }
 
+        String getRewriteRules() {
+            return map.getOrDefault(GroupNameFormatter.REWRITE_RULES_PROPERTY, "");
+        }
+
         boolean enabledTrimWhitespace() {
             return Boolean.parseBoolean(map.getOrDefault(GroupNameFormatter.TRIM_WHITESPACE_PROPERTY, String.valueOf(false)));
         }
@@ -188,6 +322,42 @@ public class ClaimToAttributeMapper extends AbstractClaimMapper {
         boolean enabledAttributeOverwrite() {
             return Boolean.parseBoolean(map.getOrDefault(OVERWRITE_ATTRIBUTE_PROPERTY, String.valueOf(false)));
         }
+
+        SelectionMode getSelectionMode() {
+            return SelectionMode.fromValue(map.getOrDefault(SELECTION_MODE_PROPERTY, ""));
+        }
+
+        /**
+         * The patterns are compiled only once for each distinct config value.
+         *
+         * @throws IllegalArgumentException if a pattern is invalid.
+         */
+        List<Pattern> getPriorityPatterns() {
+            return parsedPriorityPatterns.get(map.getOrDefault(PRIORITY_PATTERNS_PROPERTY, ""));
+        }
+
+        String getJoinSeparator() {
+            return map.getOrDefault(JOIN_SEPARATOR_PROPERTY, ",");
+        }
+    }
+
+    enum SelectionMode {
+        UNIQUE("unique"), FIRST("first"), LAST("last"), JOIN("join"), PRIORITY("priority");
+
+        final String value;
+
+        SelectionMode(String value) {
+            this.value = value;
+        }
+
+        static SelectionMode fromValue(String value) {
+            return Arrays.stream(values()).filter(mode -> mode.value.equals(value)).findFirst().orElse(UNIQUE);
+        }
+
+        @Override
+        public String toString() {
+            return value;
+        }
     }
 
     @Override
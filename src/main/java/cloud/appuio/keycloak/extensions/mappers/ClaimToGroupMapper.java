@@ -10,17 +10,31 @@ APPUiO Cloud purposes. Many thanks to Luiz Carlos Viana Melo for the inspiring w
 package cloud.appuio.keycloak.extensions.mappers;
 
 import org.jboss.logging.Logger;
+import org.keycloak.Config;
 import org.keycloak.broker.oidc.KeycloakOIDCIdentityProviderFactory;
 import org.keycloak.broker.oidc.OIDCIdentityProviderFactory;
 import org.keycloak.broker.oidc.mappers.AbstractClaimMapper;
 import org.keycloak.broker.provider.BrokeredIdentityContext;
 import org.keycloak.models.*;
+import org.keycloak.models.utils.KeycloakModelUtils;
 import org.keycloak.provider.ProviderConfigProperty;
+import org.keycloak.services.scheduled.ClusterAwareScheduledTaskRunner;
+import org.keycloak.timer.TimerProvider;
 
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
 import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 /**
@@ -29,94 +43,365 @@ import java.util.stream.Collectors;
  */
 public class ClaimToGroupMapper extends AbstractClaimMapper {
 
+    private final MassLeaveGuard massLeaveGuard = new MassLeaveGuard();
+    private final GroupCreationLimiter groupCreationLimiter = new GroupCreationLimiter();
+    private FilterResultCache filterResultCache = new FilterResultCache(DEFAULT_FILTER_CACHE_SIZE, DEFAULT_FILTER_CACHE_TTL_SECONDS * 1000L);
+
+    private long membershipSweepIntervalMillis = DEFAULT_MEMBERSHIP_SWEEP_INTERVAL_MINUTES * 60_000L;
+    private int membershipSweepBatchSize = DEFAULT_MEMBERSHIP_SWEEP_BATCH_SIZE;
+    private int membershipSweepLookbackDays = DEFAULT_MEMBERSHIP_SWEEP_LOOKBACK_DAYS;
+    private ChangeJournal journal = ChangeJournal.DISABLED;
+    private GroupIndex groupIndex = new GroupIndex(DEFAULT_GROUP_INDEX_REBUILD_INTERVAL_SECONDS * 1000L);
+
+    @Override
+    public void init(Config.Scope config) {
+        filterResultCache = new FilterResultCache(
+                config.getInt("filterCacheSize", DEFAULT_FILTER_CACHE_SIZE),
+                config.getLong("filterCacheTtlSeconds", DEFAULT_FILTER_CACHE_TTL_SECONDS) * 1000L);
+        membershipSweepIntervalMillis = config.getLong("membershipSweepIntervalMinutes", DEFAULT_MEMBERSHIP_SWEEP_INTERVAL_MINUTES) * 60_000L;
+        membershipSweepBatchSize = config.getInt("membershipSweepBatchSize", DEFAULT_MEMBERSHIP_SWEEP_BATCH_SIZE);
+        membershipSweepLookbackDays = config.getInt("membershipSweepLookbackDays", DEFAULT_MEMBERSHIP_SWEEP_LOOKBACK_DAYS);
+        journal = ChangeJournal.fromConfig(config);
+        groupIndex = new GroupIndex(config.getLong("groupIndexRebuildIntervalSeconds", DEFAULT_GROUP_INDEX_REBUILD_INTERVAL_SECONDS) * 1000L);
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        if (membershipSweepIntervalMillis <= 0) return;
+        var sweeper = new MembershipExpirySweeper(getId(), membershipSweepBatchSize, membershipSweepLookbackDays, journal);
+        KeycloakModelUtils.runJobInTransaction(factory, session -> session.getProvider(TimerProvider.class).schedule(
+                new ClusterAwareScheduledTaskRunner(factory, sweeper, membershipSweepIntervalMillis),
+                membershipSweepIntervalMillis, MembershipExpirySweeper.TASK_NAME));
+    }
+
     @Override
     public void importNewUser(KeycloakSession session, RealmModel realm, UserModel user, IdentityProviderMapperModel mapperModel, BrokeredIdentityContext context) {
-        this.syncGroups(realm, user, new MapperConfig(mapperModel.getConfig()), mapperModel, context);
+        this.syncGroups(session, realm, user, new MapperConfig(mapperModel.getConfig(), mapperModel.getIdentityProviderAlias()), mapperModel, context);
     }
 
     @Override
     public void updateBrokeredUser(KeycloakSession session, RealmModel realm, UserModel user, IdentityProviderMapperModel mapperModel, BrokeredIdentityContext context) {
-        this.syncGroups(realm, user, new MapperConfig(mapperModel.getConfig()), mapperModel, context);
+        this.syncGroups(session, realm, user, new MapperConfig(mapperModel.getConfig(), mapperModel.getIdentityProviderAlias()), mapperModel, context);
     }
 
-    private void syncGroups(RealmModel realm, UserModel user, MapperConfig config, IdentityProviderMapperModel mapperModel, BrokeredIdentityContext context) {
+    private void syncGroups(KeycloakSession session, RealmModel realm, UserModel user, MapperConfig config, IdentityProviderMapperModel mapperModel, BrokeredIdentityContext context) {
         // abort if mapper is configured incorrectly.
         if (config.getClaimName().equals("")) return;
 
-        var instrumentation = new Instrumentation(realm.getName(), mapperModel.getIdentityProviderAlias(), user.getUsername());
+        var instrumentation = new Instrumentation(realm.getName(), mapperModel.getIdentityProviderAlias(), user.getUsername(), journal.afterCommit(session));
+        try {
+            newGroupNameFormatter(config);
+        } catch (IllegalArgumentException e) {
+            instrumentation.invalidFormatterConfig(e.getMessage());
+            return;
+        }
 
         var claim = ClaimListExtractor.extractClaim(context, config.getClaimName());
         if (claim.isEmpty()) {
             instrumentation.noClaimForUser(config.getClaimName());
             return;
         }
-        doSyncGroups(realm, user, claim.get(), instrumentation, config);
+        if (config.getExternalIdAttribute().equals("")) {
+            doSyncGroups(realm, user, claim.get(), instrumentation, config);
+            return;
+        }
+        var displayNames = Map.<String, String>of();
+        if (!config.getDisplayNameClaim().equals("")) {
+            var pairs = ClaimListExtractor.extractClaimPairs(context, config.getClaimName(), config.getDisplayNameClaim());
+            if (pairs.isEmpty()) instrumentation.unpairedDisplayNames(config.getClaimName(), config.getDisplayNameClaim());
+            displayNames = pairs.orElse(Map.of());
+        }
+        doSyncGroupsByExternalId(realm, user, claim.get(), displayNames, instrumentation, config);
     }
 
     void doSyncGroups(RealmModel realm, UserModel user, List<String> rawGroupNames, Instrumentation instrumentation, MapperConfig config) {
-        var filteredGroupNames = filterGroupNames(rawGroupNames, config);
+        var filteredGroupNames = filterResultCache.get(config.getFilterCacheKey(), rawGroupNames, System.currentTimeMillis(),
+                () -> filterGroupNames(rawGroupNames, config));
+        instrumentation.filterCacheLookup(filterResultCache);
 
+        if (config.enabledLooseMatching()) {
+            doSyncGroupsByMatchKey(realm, user, filteredGroupNames, instrumentation, config);
+            return;
+        }
+
+        var delta = GroupReconciler.reconcile(realm.getGroupsStream(), user.getGroupsStream(), filteredGroupNames);
+
+        var groupsToJoin = new ArrayList<>(delta.getGroupsToJoin());
         if (config.enabledCreateGroups()) {
-            createMissingGroups(realm, filteredGroupNames, instrumentation);
+            groupsToJoin.addAll(createMissingGroups(realm, delta.getGroupsToCreate(), Map.of(), instrumentation, config));
         }
+        applyDelta(realm, user, delta, groupsToJoin, instrumentation, config);
+    }
+
+    /**
+     * Matches the group names by {@link GroupNameFormatter#matchKey(String)}, but creates groups with the names of the claim.
+     */
+    private void doSyncGroupsByMatchKey(RealmModel realm, UserModel user, Set<String> groupNames, Instrumentation instrumentation, MapperConfig config) {
+        var displayNames = new HashMap<String, String>();
+        groupNames.stream()
+                .filter(Objects::nonNull)
+                .sorted()
+                .forEach(name -> displayNames.putIfAbsent(GroupNameFormatter.matchKey(name), name));
+        var keys = displayNames.keySet();
+
+        Function<GroupModel, String> matchKeyOf = group -> GroupNameFormatter.matchKey(group.getName());
+        var resolution = groupIndex.resolve(realm, MATCH_KEY_INDEX, matchKeyOf, keys, System.currentTimeMillis());
+        var collisions = groupIndex.getCollisions(realm, MATCH_KEY_INDEX);
+        keys.stream().filter(collisions::containsKey).forEach(key -> instrumentation.ambiguousGroups(key, collisions.get(key)));
+        var delta = GroupReconciler.reconcile(resolution.getGroups().stream(), user.getGroupsStream(), keys, matchKeyOf);
+
+        var groupsToJoin = new ArrayList<>(delta.getGroupsToJoin());
+        if (config.enabledCreateGroups()) {
+            var absentKeys = absentKeys(delta.getGroupsToCreate(), resolution, instrumentation);
+            groupsToJoin.addAll(createMissingGroups(realm, absentKeys, displayNames, instrumentation, config));
+        }
+        applyDelta(realm, user, delta, groupsToJoin, instrumentation, config);
+    }
+
+    /**
+     * Matches the claim values against the configured group attribute instead of the group names.
+     *
+     * @param rawDisplayNames the display names of the groups by id, or an empty map.
+     */
+    void doSyncGroupsByExternalId(RealmModel realm, UserModel user, List<String> rawExternalIds, Map<String, String> rawDisplayNames, Instrumentation instrumentation, MapperConfig config) {
+        var attribute = config.getExternalIdAttribute();
+        var externalIds = filterExternalIds(rawExternalIds, config);
+        var displayNames = formatDisplayNames(rawDisplayNames, config);
+
+        Function<GroupModel, String> externalIdOf = group -> group.getFirstAttribute(attribute);
+        var resolution = groupIndex.resolve(realm, ATTRIBUTE_INDEX_PREFIX + attribute, externalIdOf, externalIds, System.currentTimeMillis());
+        var delta = GroupReconciler.reconcile(resolution.getGroups().stream(), user.getGroupsStream(), externalIds, externalIdOf);
+
+        var groupsToJoin = new ArrayList<>(delta.getGroupsToJoin());
+        if (config.enabledCreateGroups()) {
+            var absentKeys = absentKeys(delta.getGroupsToCreate(), resolution, instrumentation);
+            groupsToJoin.addAll(createMissingGroups(realm, absentKeys, displayNames, instrumentation, config));
+        }
+        renameGroups(resolution.getGroups(), externalIdOf, displayNames, instrumentation);
+        applyDelta(realm, user, delta, groupsToJoin, instrumentation, config);
+    }
+
+    /**
+     * Returns the keys to create groups for, i.e. the missing keys that the group index confirmed to be absent by a scan during this login.
+     * Creating the other missing keys is deferred to a later login, so that an index that skipped its rebuild
+     * never leads to duplicates of groups created recently by an admin or another node.
+     */
+    private static List<String> absentKeys(List<String> missingKeys, GroupIndex.Resolution resolution, Instrumentation instrumentation) {
+        var absentKeys = Set.copyOf(resolution.getAbsentKeys());
+        var deferredKeys = missingKeys.stream().filter(key -> !absentKeys.contains(key)).collect(Collectors.toList());
+        if (!deferredKeys.isEmpty()) instrumentation.deferredGroupCreation(deferredKeys);
+        return missingKeys.stream().filter(absentKeys::contains).collect(Collectors.toList());
+    }
+
+    private void applyDelta(RealmModel realm, UserModel user, GroupReconciler.Delta delta, List<GroupModel> groupsToJoin, Instrumentation instrumentation, MapperConfig config) {
+        var memberGroups = leaveGroupsNotInClaim(realm, user, delta, instrumentation, config);
+        memberGroups.addAll(joinGroupsInClaim(user, groupsToJoin, instrumentation));
 
-        leaveGroupsNotInClaim(user, filteredGroupNames, instrumentation);
-        joinGroupsInClaim(realm, user, filteredGroupNames, instrumentation);
+        if (!config.getGroupsAttribute().equals("")) {
+            updateGroupsAttribute(user, config.getGroupsAttribute(), sortedNames(memberGroups), instrumentation);
+        }
+        if (config.getMembershipTtlDays() > 0) {
+            ManagedMemberships.confirm(realm, user, config.getIdentityProviderAlias(), memberGroups, LocalDate.now(ZoneOffset.UTC).toEpochDay(), instrumentation.getJournal());
+        }
     }
 
     Set<String> filterGroupNames(List<String> rawGroupNames, MapperConfig config) {
-        var formatter = new GroupNameFormatter()
-                .withTrimWhitespace(config.enabledTrimWhitespace())
-                .withTrimPrefix(config.getTrimPrefix())
-                .withToLowerCase(config.enabledToLowerCase());
+        var formatter = newGroupNameFormatter(config);
 
         return rawGroupNames.stream()
                 .filter(rawName -> matchesPattern(config.getIncludePattern(), rawName))
-                .map(formatter::format)
+                .map(formatter::rewrite)
+                .flatMap(Optional::stream)
                 .collect(Collectors.toSet());
     }
 
+    private Set<String> filterExternalIds(List<String> rawExternalIds, MapperConfig config) {
+        return rawExternalIds.stream()
+                .filter(rawId -> matchesPattern(config.getIncludePattern(), rawId))
+                .map(String::trim)
+                .filter(id -> !id.isEmpty())
+                .collect(Collectors.toSet());
+    }
+
+    /**
+     * @return the formatted display names by external id.
+     */
+    private Map<String, String> formatDisplayNames(Map<String, String> rawDisplayNames, MapperConfig config) {
+        if (rawDisplayNames.isEmpty()) return Map.of();
+        var formatter = newGroupNameFormatter(config);
+        var displayNames = new HashMap<String, String>();
+        rawDisplayNames.forEach((rawExternalId, rawDisplayName) ->
+                formatter.rewrite(rawDisplayName).ifPresent(name -> displayNames.putIfAbsent(rawExternalId.trim(), name)));
+        return displayNames;
+    }
+
+    private void renameGroups(List<GroupModel> groups, Function<GroupModel, String> externalIdOf, Map<String, String> displayNames, Instrumentation instrumentation) {
+        if (displayNames.isEmpty()) return;
+        for (var group : groups) {
+            var displayName = displayNames.get(externalIdOf.apply(group));
+            if (displayName == null || displayName.equals(group.getName())) continue;
+            var oldName = group.getName();
+            group.setName(displayName);
+            instrumentation.renamedGroup(oldName, displayName);
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if the trim prefix or the rewrite rules are invalid.
+     */
+    private static GroupNameFormatter newGroupNameFormatter(MapperConfig config) {
+        return new GroupNameFormatter()
+                .withTrimWhitespace(config.enabledTrimWhitespace())
+                .withTrimPrefix(config.getTrimPrefix())
+                .withRewriteRules(config.getRewriteRules())
+                .withToLowerCase(config.enabledToLowerCase());
+    }
+
     private boolean matchesPattern(String pattern, String rawName) {
         return "".equals(pattern) || rawName.matches(pattern);
     }
 
-    private void joinGroupsInClaim(RealmModel realm, UserModel user, Set<String> groupNamesInClaim, Instrumentation instrumentation) {
-        var joinedGroupNames = realm.getGroupsStream()
-                .filter(group -> groupNamesInClaim.contains(group.getName()))
-                .filter(group -> !user.isMemberOf(group))
-                .peek(user::joinGroup)
-                .map(GroupModel::getName)
-                .collect(Collectors.joining(", "));
-        instrumentation.joinedGroups(joinedGroupNames);
+    private List<GroupModel> joinGroupsInClaim(UserModel user, List<GroupModel> groupsToJoin, Instrumentation instrumentation) {
+        groupsToJoin.forEach(user::joinGroup);
+        instrumentation.joinedGroups(names(groupsToJoin));
+        return groupsToJoin;
+    }
+
+    /**
+     * @return the groups the user is still member of.
+     */
+    private List<GroupModel> leaveGroupsNotInClaim(RealmModel realm, UserModel user, GroupReconciler.Delta delta, Instrumentation instrumentation, MapperConfig config) {
+        var groupsToLeave = delta.getGroupsToLeave();
+        var remainingGroups = new ArrayList<>(delta.getGroupsToKeep());
+
+        var limits = config.getMassLeaveLimits();
+        if (!massLeaveGuard.permitsShrink(delta.getCurrentGroupCount(), groupsToLeave.size(), limits)) {
+            instrumentation.refusedMassLeave(delta.getCurrentGroupCount(), groupsToLeave.size(), massLeaveGuard.getShrinkTrips());
+            remainingGroups.addAll(groupsToLeave);
+            return remainingGroups;
+        }
+        var permittedCount = massLeaveGuard.acquireRemovals(realm.getName(), groupsToLeave.size(), limits, System.currentTimeMillis());
+        if (permittedCount < groupsToLeave.size()) {
+            instrumentation.deferredLeave(groupsToLeave.size() - permittedCount, massLeaveGuard.getRateLimitTrips());
+        }
+
+        var leftGroups = groupsToLeave.subList(0, permittedCount);
+        leftGroups.forEach(user::leaveGroup);
+        instrumentation.leftGroups(names(leftGroups));
+        remainingGroups.addAll(groupsToLeave.subList(permittedCount, groupsToLeave.size()));
+        return remainingGroups;
     }
 
-    private void leaveGroupsNotInClaim(UserModel user, Set<String> groupNamesInClaim, Instrumentation instrumentation) {
-        var leftGroupNames = user.getGroupsStream()
-                .filter(group -> !groupNamesInClaim.contains(group.getName()))
-                .peek(user::leaveGroup)
+    private static List<String> names(List<GroupModel> groups) {
+        return groups.stream().map(GroupModel::getName).collect(Collectors.toList());
+    }
+
+    private static SortedSet<String> sortedNames(List<GroupModel> groups) {
+        return groups.stream()
                 .map(GroupModel::getName)
-                .collect(Collectors.joining(", "));
-        instrumentation.leftGroups(leftGroupNames);
+                .filter(Objects::nonNull)
+                .collect(Collectors.toCollection(TreeSet::new));
+    }
+
+    /**
+     * Writes the group names as multi-valued user attribute, but only if they differ from the current values.
+     */
+    private void updateGroupsAttribute(UserModel user, String attributeKey, SortedSet<String> groupNames, Instrumentation instrumentation) {
+        var sortedGroupNames = List.copyOf(groupNames);
+        var currentValues = user.getAttributeStream(attributeKey).collect(Collectors.toList());
+        if (currentValues.equals(sortedGroupNames)) return;
+        user.setAttribute(attributeKey, sortedGroupNames);
+        instrumentation.updatedGroupsAttribute(attributeKey, currentValues, sortedGroupNames);
+    }
+
+    /**
+     * @return the created groups.
+     */
+    private List<GroupModel> createMissingGroups(RealmModel realm, List<String> missingGroupKeys, Map<String, String> displayNames, Instrumentation instrumentation, MapperConfig config) {
+        if (missingGroupKeys.isEmpty()) return List.of();
+
+        var alias = config.getIdentityProviderAlias();
+        var limits = config.getGroupCreationLimits();
+        var limiterKey = realm.getName() + "/" + alias;
+        var newGroups = new ArrayList<GroupModel>();
+        var groupAttributes = new LinkedHashMap<String, List<String>>();
+        var externalIdAttribute = config.getExternalIdAttribute();
+        for (var groupKey : missingGroupKeys) {
+            var groupName = displayNames.getOrDefault(groupKey, groupKey);
+            var decision = limits.isEnabled()
+                    ? groupCreationLimiter.tryCreate(limiterKey, limits, () -> countCreatedGroups(realm, alias), System.currentTimeMillis())
+                    : GroupCreationLimiter.Decision.PERMITTED;
+            if (decision != GroupCreationLimiter.Decision.PERMITTED) {
+                instrumentation.skippedGroupCreation(groupName, decision, groupCreationLimiter);
+                continue;
+            }
+            var group = realm.createGroup(groupName);
+            group.setSingleAttribute(CREATED_BY_ATTRIBUTE, alias);
+            var stampedAttributes = new ArrayList<>(List.of(CREATED_BY_ATTRIBUTE + "=" + alias));
+            if (!externalIdAttribute.equals("")) {
+                group.setSingleAttribute(externalIdAttribute, groupKey);
+                stampedAttributes.add(externalIdAttribute + "=" + groupKey);
+                groupIndex.put(realm, ATTRIBUTE_INDEX_PREFIX + externalIdAttribute, groupKey, group);
+            } else if (config.enabledLooseMatching()) {
+                groupIndex.put(realm, MATCH_KEY_INDEX, groupKey, group);
+            }
+            newGroups.add(group);
+            groupAttributes.put(groupName, stampedAttributes);
+        }
+        instrumentation.createdGroups(names(newGroups));
+        groupAttributes.forEach(instrumentation::stampedGroupAttributes);
+        return newGroups;
     }
 
-    private void createMissingGroups(RealmModel realm, Set<String> groupNames, Instrumentation instrumentation) {
-        var newGroupNames = groupNames.stream()
-                .filter(groupName -> realm.getGroupsStream()
-                        .map(GroupModel::getName)
-                        .noneMatch(existingGroup -> existingGroup.equals(groupName)))
-                .peek(realm::createGroup)
-                .collect(Collectors.joining(", "));
-        instrumentation.createdGroups(newGroupNames);
+    private long countCreatedGroups(RealmModel realm, String alias) {
+        return realm.getGroupsStream()
+                .filter(group -> alias.equals(group.getFirstAttribute(CREATED_BY_ATTRIBUTE)))
+                .count();
     }
 
+    static final int DEFAULT_FILTER_CACHE_SIZE = 1000;
+    static final long DEFAULT_FILTER_CACHE_TTL_SECONDS = 600;
+    static final long DEFAULT_MEMBERSHIP_SWEEP_INTERVAL_MINUTES = 60;
+    static final int DEFAULT_MEMBERSHIP_SWEEP_BATCH_SIZE = 100;
+    static final int DEFAULT_MEMBERSHIP_SWEEP_LOOKBACK_DAYS = 30;
+    static final long DEFAULT_GROUP_INDEX_REBUILD_INTERVAL_SECONDS = 10;
+    private static final String ATTRIBUTE_INDEX_PREFIX = "attribute:";
+    private static final String MATCH_KEY_INDEX = "match-key";
+    private static final String PER_NODE_LIMIT_HELP = "The limit is enforced by each Keycloak node on its own, so a cluster allows up to this limit times the number of nodes. ";
+
     public static final String INCLUDE_PATTERNS = "include_patterns";
     public static final String CREATE_GROUPS = "create_groups";
+    public static final String LOOSE_MATCHING = "loose_matching";
+    public static final String GROUPS_ATTRIBUTE = "groups_attribute";
+    public static final String MEMBERSHIP_TTL_DAYS = "membership_ttl_days";
+    public static final String MAX_GROUP_CREATIONS_PER_MINUTE = "max_group_creations_per_minute";
+    public static final String MAX_CREATED_GROUPS = "max_created_groups";
+    public static final String MAX_LEAVE_COUNT = "max_leave_count";
+    public static final String EXTERNAL_ID_ATTRIBUTE = "external_id_attribute";
+    public static final String DISPLAY_NAME_CLAIM = "display_name_claim";
+
+    /**
+     * Group attribute holding the alias of the IdP whose mapper created the group.
+     */
+    public static final String CREATED_BY_ATTRIBUTE = "created_by_idp";
+    public static final String MAX_LEAVE_PERCENTAGE = "max_leave_percentage";
+    public static final String MAX_LEAVES_PER_MINUTE = "max_leaves_per_minute";
 
     static class MapperConfig {
         Map<String, String> map;
+        String identityProviderAlias;
 
         MapperConfig(Map<String, String> config) {
+            this(config, "");
+        }
+
+        MapperConfig(Map<String, String> config, String identityProviderAlias) {
             this.map = config;
+            this.identityProviderAlias = identityProviderAlias;
+        }
+
+        String getIdentityProviderAlias() {
+            return identityProviderAlias;
         }
 
         String getClaimName() {
@@ -135,6 +420,10 @@ public class ClaimToGroupMapper extends AbstractClaimMapper {
             return map.getOrDefault(GroupNameFormatter.TRIM_PREFIX_PROPERTY, "");
         }
 
+        String getRewriteRules() {
+            return map.getOrDefault(GroupNameFormatter.REWRITE_RULES_PROPERTY, "");
+        }
+
         String getIncludePattern() {
             return map.getOrDefault(INCLUDE_PATTERNS, "");
         }
@@ -142,6 +431,50 @@ public class ClaimToGroupMapper extends AbstractClaimMapper {
         boolean enabledCreateGroups() {
             return Boolean.parseBoolean(map.getOrDefault(CREATE_GROUPS, String.valueOf(false)));
         }
+
+        boolean enabledLooseMatching() {
+            return Boolean.parseBoolean(map.getOrDefault(LOOSE_MATCHING, String.valueOf(false)));
+        }
+
+        /**
+         * Identifies the settings that affect {@link #filterGroupNames(List, MapperConfig)}.
+         */
+        String getFilterCacheKey() {
+            return String.join("\u0000", getIncludePattern(), getTrimPrefix(), getRewriteRules(),
+                    String.valueOf(enabledTrimWhitespace()), String.valueOf(enabledToLowerCase()));
+        }
+
+        String getExternalIdAttribute() {
+            return map.getOrDefault(EXTERNAL_ID_ATTRIBUTE, "").trim();
+        }
+
+        String getDisplayNameClaim() {
+            return map.getOrDefault(DISPLAY_NAME_CLAIM, "");
+        }
+
+        String getGroupsAttribute() {
+            return map.getOrDefault(GROUPS_ATTRIBUTE, "");
+        }
+
+        int getMembershipTtlDays() {
+            return getInt(MEMBERSHIP_TTL_DAYS);
+        }
+
+        GroupCreationLimiter.Limits getGroupCreationLimits() {
+            return new GroupCreationLimiter.Limits(getInt(MAX_GROUP_CREATIONS_PER_MINUTE), getInt(MAX_CREATED_GROUPS));
+        }
+
+        MassLeaveGuard.Limits getMassLeaveLimits() {
+            return new MassLeaveGuard.Limits(getInt(MAX_LEAVE_COUNT), getInt(MAX_LEAVE_PERCENTAGE), getInt(MAX_LEAVES_PER_MINUTE));
+        }
+
+        private int getInt(String key) {
+            try {
+                return Math.max(0, Integer.parseInt(map.getOrDefault(key, "0").trim()));
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
     }
 
     @Override
@@ -153,7 +486,9 @@ public class ClaimToGroupMapper extends AbstractClaimMapper {
         claimProperty.setHelpText("**REQUIRED** Name of claim to search for in token. " +
                 "This claim must be a string array with the names of the groups which the user is member. " +
                 "You can reference nested claims using a '.', i.e. 'address.locality'. " +
-                "To use dot (.) literally, escape it with backslash (\\.)");
+                "To use dot (.) literally, escape it with backslash (\\.). " +
+                "Use '[*]' to select all array elements, '[?field=value]' to select matching array elements " +
+                "and '*' to select all values of an object, i.e. 'groups[?type=team].displayName'.");
 
         var includePatternsProperty = new ProviderConfigProperty(
                 INCLUDE_PATTERNS, "Match pattern", null, ProviderConfigProperty.STRING_TYPE, ""
@@ -168,7 +503,94 @@ public class ClaimToGroupMapper extends AbstractClaimMapper {
         createGroupsProperty.setHelpText("Indicates if missing groups must be created in the realms. " +
                 "Otherwise, they will be ignored.");
 
-        return List.of(claimProperty, includePatternsProperty, createGroupsProperty, GroupNameFormatter.TO_LOWERCASE, GroupNameFormatter.TRIM_WHITESPACE, GroupNameFormatter.TRIM_PREFIX);
+        var looseMatchingProperty = new ProviderConfigProperty(
+                LOOSE_MATCHING, "Match group names loosely", null, ProviderConfigProperty.BOOLEAN_TYPE, false
+        );
+        looseMatchingProperty.setHelpText("Matches group names ignoring case, whitespace, dashes and Unicode compatibility differences, " +
+                "i.e. 'Dev Team' from the IdP matches the existing group 'dev-team'. " +
+                "Existing groups keep their names, created groups get the formatted name from the claim. " +
+                "If several groups match the same name, the group with the lowest id is used and a warning is logged.");
+
+        var maxGroupCreationsPerMinuteProperty = new ProviderConfigProperty(
+                MAX_GROUP_CREATIONS_PER_MINUTE, "Max. group creations per minute", null, ProviderConfigProperty.STRING_TYPE, "0"
+        );
+        maxGroupCreationsPerMinuteProperty.setHelpText("Limits how many groups this IdP may create per minute in the realm. " +
+                PER_NODE_LIMIT_HELP +
+                "Groups over the limit are skipped and created on a later login. " +
+                "0 disables the limit.");
+
+        var maxCreatedGroupsProperty = new ProviderConfigProperty(
+                MAX_CREATED_GROUPS, "Max. number of created groups", null, ProviderConfigProperty.STRING_TYPE, "0"
+        );
+        maxCreatedGroupsProperty.setHelpText("Stops creating groups once this IdP created the given number of groups in the realm. " +
+                "Created groups are marked with the '" + CREATED_BY_ATTRIBUTE + "' attribute. " +
+                "0 disables the quota.");
+
+        var externalIdAttributeProperty = new ProviderConfigProperty(
+                EXTERNAL_ID_ATTRIBUTE, "External ID attribute", null, ProviderConfigProperty.STRING_TYPE, ""
+        );
+        externalIdAttributeProperty.setHelpText("If set, the claim values are treated as immutable group ids of the IdP and matched against this group attribute instead of the group name, " +
+                "so that groups renamed on the IdP are not duplicated. " +
+                "Created groups get the id stamped into this attribute. " +
+                "The match pattern is applied to the ids, the name formatting options to the display names. " +
+                "If empty, groups are matched by name.");
+
+        var displayNameClaimProperty = new ProviderConfigProperty(
+                DISPLAY_NAME_CLAIM, "Display name claim", null, ProviderConfigProperty.STRING_TYPE, ""
+        );
+        displayNameClaimProperty.setHelpText("Only used with an external ID attribute. " +
+                "Claim with the group names, i.e. 'groups[*].displayName' for the ids 'groups[*].id'. " +
+                "Each name is taken from the same claim element as its id, elements without a single id and name are not renamed. " +
+                "Claims without selectors, i.e. 'group_names' for 'group_ids', are paired by position if they have the same number of values. " +
+                "If set, groups are created with and renamed to these names. " +
+                "If empty, groups are created with the id as name and never renamed.");
+
+        var groupsAttributeProperty = new ProviderConfigProperty(
+                GROUPS_ATTRIBUTE, "Groups attribute", null, ProviderConfigProperty.STRING_TYPE, ""
+        );
+        groupsAttributeProperty.setHelpText("If set, the names of the user's groups are stored sorted in this multi-valued user attribute after each sync. " +
+                "The attribute is only written if the groups changed. " +
+                "Users can edit their own attributes in the account console, so add this attribute to the realm's read-only attributes " +
+                "(option 'read-only-attributes' of the 'legacy-user-profile' provider) before adding it to tokens with a multi-valued 'User Attribute' token mapper, " +
+                "otherwise users can add arbitrary groups to their tokens. " +
+                "If empty, no attribute is written.");
+
+        var membershipTtlProperty = new ProviderConfigProperty(
+                MEMBERSHIP_TTL_DAYS, "Membership TTL (days)", null, ProviderConfigProperty.STRING_TYPE, "0"
+        );
+        membershipTtlProperty.setHelpText("Removes the user from the groups synced by this mapper if the user did not log in through this IdP for the given number of days. " +
+                "Expired memberships are removed by a background task. " +
+                "The day of the last login is stored in the user attribute '" + ManagedMemberships.CONFIRMED_ATTRIBUTE_PREFIX + "<alias>', " +
+                "add 'idp_groups*' to the realm's read-only attributes (option 'read-only-attributes' of the 'legacy-user-profile' provider) so that users cannot edit it to avoid expiry. " +
+                "Memberships are only expired within the sweeper's lookback window after the TTL (SPI option 'membershipSweepLookbackDays', " + DEFAULT_MEMBERSHIP_SWEEP_LOOKBACK_DAYS + " days by default), " +
+                "older memberships, e.g. after the sweeper was disabled for longer than that, are kept until the next login. " +
+                "0 keeps memberships until the next login.");
+
+        var maxLeaveCountProperty = new ProviderConfigProperty(
+                MAX_LEAVE_COUNT, "Max. groups to leave per login", null, ProviderConfigProperty.STRING_TYPE, "0"
+        );
+        maxLeaveCountProperty.setHelpText("Refuses to remove the user from any group if the claim would remove the user from more than this number of groups at once, " +
+                "e.g. because the IdP sent an empty or truncated claim. " +
+                "If the percentage is set too, both thresholds must be exceeded. " +
+                "0 disables this check.");
+
+        var maxLeavePercentageProperty = new ProviderConfigProperty(
+                MAX_LEAVE_PERCENTAGE, "Max. percentage of groups to leave per login", null, ProviderConfigProperty.STRING_TYPE, "0"
+        );
+        maxLeavePercentageProperty.setHelpText("Refuses to remove the user from any group if the claim would remove the user from more than this percentage of the current groups at once. " +
+                "If the number of groups is set too, both thresholds must be exceeded. " +
+                "0 disables this check.");
+
+        var maxLeavesPerMinuteProperty = new ProviderConfigProperty(
+                MAX_LEAVES_PER_MINUTE, "Max. group removals per minute", null, ProviderConfigProperty.STRING_TYPE, "0"
+        );
+        maxLeavesPerMinuteProperty.setHelpText("Limits the number of group removals per minute in the realm. " +
+                PER_NODE_LIMIT_HELP +
+                "Removals over the limit are deferred to the user's next login. " +
+                "0 disables the limit.");
+
+        return List.of(claimProperty, includePatternsProperty, createGroupsProperty, looseMatchingProperty, maxGroupCreationsPerMinuteProperty, maxCreatedGroupsProperty, GroupNameFormatter.TO_LOWERCASE, GroupNameFormatter.TRIM_WHITESPACE, GroupNameFormatter.TRIM_PREFIX, GroupNameFormatter.REWRITE_RULES,
+                externalIdAttributeProperty, displayNameClaimProperty, groupsAttributeProperty, membershipTtlProperty, maxLeaveCountProperty, maxLeavePercentageProperty, maxLeavesPerMinuteProperty);
     }
 
     @Override
@@ -211,11 +633,22 @@ public class ClaimToGroupMapper extends AbstractClaimMapper {
         private final String idpAlias;
         private final String username;
         private final String realmName;
+        private final ChangeRecorder journal;
 
         Instrumentation(String realmName, String identityProviderAlias, String username) {
+            this(realmName, identityProviderAlias, username, ChangeJournal.DISABLED);
+        }
+
+        Instrumentation(String realmName, String identityProviderAlias, String username, ChangeRecorder journal) {
             this.realmName = realmName;
             this.idpAlias = identityProviderAlias;
             this.username = username;
+            this.journal = journal;
+        }
+
+        void invalidFormatterConfig(String message) {
+            logger.warnf("Realm [%s], IdP [%s]: invalid group name formatting config, ignoring user [%s]: %s",
+                    this.realmName, this.idpAlias, this.username, message);
         }
 
         void noClaimForUser(String claimName) {
@@ -223,19 +656,84 @@ public class ClaimToGroupMapper extends AbstractClaimMapper {
                     this.realmName, this.idpAlias, this.username, claimName);
         }
 
-        void createdGroups(String newGroupNames) {
+        void createdGroups(List<String> newGroupNames) {
+            journal.record(this.realmName, this.idpAlias, this.username, ChangeJournal.ChangeType.GROUP_CREATED, null, newGroupNames);
             logger.debugf("Realm [%s], IdP [%s]: created new groups for user [%s]: [%s]",
-                    this.realmName, this.idpAlias, this.username, newGroupNames);
+                    this.realmName, this.idpAlias, this.username, String.join(", ", newGroupNames));
         }
 
-        void joinedGroups(String joinedGroups) {
+        void joinedGroups(List<String> joinedGroupNames) {
+            journal.record(this.realmName, this.idpAlias, this.username, ChangeJournal.ChangeType.GROUP_JOINED, null, joinedGroupNames);
             logger.debugf("Realm [%s], IdP [%s]: user [%s] joined groups: [%s]",
-                    this.realmName, this.idpAlias, this.username, joinedGroups);
+                    this.realmName, this.idpAlias, this.username, String.join(", ", joinedGroupNames));
         }
 
-        void leftGroups(String leftGroupNames) {
+        void leftGroups(List<String> leftGroupNames) {
+            journal.record(this.realmName, this.idpAlias, this.username, ChangeJournal.ChangeType.GROUP_LEFT, null, leftGroupNames);
             logger.debugf("Realm [%s], IdP [%s]: user [%s] left groups: [%s]",
-                    this.realmName, this.idpAlias, this.username, leftGroupNames);
+                    this.realmName, this.idpAlias, this.username, String.join(", ", leftGroupNames));
+        }
+
+        void renamedGroup(String oldName, String newName) {
+            journal.record(this.realmName, this.idpAlias, this.username, ChangeJournal.ChangeType.GROUP_RENAMED, oldName, List.of(newName));
+            logger.debugf("Realm [%s], IdP [%s]: renamed group [%s] to [%s] for user [%s]",
+                    this.realmName, this.idpAlias, oldName, newName, this.username);
+        }
+
+        void deferredGroupCreation(List<String> groupKeys) {
+            logger.debugf("Realm [%s], IdP [%s]: deferred creating groups [%s] for user [%s] until the group index is rebuilt",
+                    this.realmName, this.idpAlias, String.join(", ", groupKeys), this.username);
+        }
+
+        void ambiguousGroups(String matchKey, List<String> groupNames) {
+            logger.warnf("Realm [%s], IdP [%s]: groups [%s] of user [%s] all match the key [%s], using the one with the lowest id",
+                    this.realmName, this.idpAlias, String.join(", ", groupNames), this.username, matchKey);
+        }
+
+        void unpairedDisplayNames(String claimName, String displayNameClaimName) {
+            logger.warnf("Realm [%s], IdP [%s]: ignoring display names of user [%s], claims [%s] and [%s] do not select the same elements",
+                    this.realmName, this.idpAlias, this.username, claimName, displayNameClaimName);
+        }
+
+        void filterCacheLookup(FilterResultCache cache) {
+            var lookups = cache.getHits() + cache.getMisses();
+            if (lookups > 0 && lookups % 1000 == 0) {
+                logger.debugf("Realm [%s], IdP [%s]: filter cache hit rate %.2f after %d lookups, %d entries",
+                        this.realmName, this.idpAlias, cache.getHitRate(), lookups, cache.size());
+            }
+        }
+
+        void skippedGroupCreation(String groupName, GroupCreationLimiter.Decision decision, GroupCreationLimiter limiter) {
+            logger.warnf("Realm [%s], IdP [%s]: skipped creating group [%s] for user [%s]: %s (rate limited %d times, quota exceeded %d times)",
+                    this.realmName, this.idpAlias, groupName, this.username, decision, limiter.getRateLimitedCount(), limiter.getQuotaExceededCount());
+        }
+
+        ChangeRecorder getJournal() {
+            return journal;
+        }
+
+        void stampedGroupAttributes(String groupName, List<String> attributes) {
+            journal.record(this.realmName, this.idpAlias, this.username, ChangeJournal.ChangeType.GROUP_ATTRIBUTES_SET, groupName, attributes);
+        }
+
+        void updatedGroupsAttribute(String attributeKey, List<String> previousGroupNames, List<String> groupNames) {
+            if (groupNames.isEmpty()) {
+                journal.record(this.realmName, this.idpAlias, this.username, ChangeJournal.ChangeType.ATTRIBUTE_REMOVED, attributeKey, previousGroupNames);
+            } else {
+                journal.record(this.realmName, this.idpAlias, this.username, ChangeJournal.ChangeType.ATTRIBUTE_SET, attributeKey, groupNames);
+            }
+            logger.debugf("Realm [%s], IdP [%s]: updated attribute [%s] of user [%s] with %d groups",
+                    this.realmName, this.idpAlias, attributeKey, this.username, groupNames.size());
+        }
+
+        void refusedMassLeave(int currentCount, int leaveCount, long totalTrips) {
+            logger.warnf("Realm [%s], IdP [%s]: refused to remove user [%s] from %d of %d groups, claim shrank beyond threshold (tripped %d times)",
+                    this.realmName, this.idpAlias, this.username, leaveCount, currentCount, totalTrips);
+        }
+
+        void deferredLeave(int deferredCount, long totalTrips) {
+            logger.warnf("Realm [%s], IdP [%s]: deferred %d group removals of user [%s], removal rate limit reached (tripped %d times)",
+                    this.realmName, this.idpAlias, deferredCount, this.username, totalTrips);
         }
     }
 }
@@ -0,0 +1,125 @@
+package cloud.appuio.keycloak.extensions.mappers;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Bounded cache of filtered and formatted group names, shared across users.
+ * <p>
+ * Users of the same team usually receive identical claims, so the result only needs to be computed once per distinct
+ * combination of mapper config and raw claim. Entries are keyed by the config and the hash of the raw claim,
+ * a hit is only returned if the cached raw claim is equal to the given one.
+ * <p>
+ * Entries are kept in insertion order, which is also the order of expiry, so evicting the oldest entry is constant time.
+ */
+class FilterResultCache {
+
+    private final LinkedHashMap<Key, Entry> entries;
+    private final int maxSize;
+    private final long ttlMillis;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param maxSize   the maximum number of entries, 0 disables the cache.
+     * @param ttlMillis the time after which an entry is recomputed.
+     */
+    FilterResultCache(int maxSize, long ttlMillis) {
+        this.maxSize = maxSize;
+        this.ttlMillis = ttlMillis;
+        this.entries = new LinkedHashMap<>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                return size() > FilterResultCache.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached result for the given config and raw claim or computes and caches it.
+     * The result is shared between callers and must not be modified.
+     */
+    Set<String> get(String configKey, List<String> rawEntries, long nowMillis, Supplier<Set<String>> compute) {
+        if (maxSize <= 0) return compute.get();
+
+        var key = new Key(configKey, rawEntries.hashCode());
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+        }
+        if (entry != null && entry.expiresAt > nowMillis && entry.rawEntries.equals(rawEntries)) {
+            hits.incrementAndGet();
+            return entry.result;
+        }
+        misses.incrementAndGet();
+        var result = Collections.unmodifiableSet(new HashSet<>(compute.get()));
+        synchronized (entries) {
+            // re-insert to move the key to the end of the insertion order
+            entries.remove(key);
+            entries.put(key, new Entry(new ArrayList<>(rawEntries), result, nowMillis + ttlMillis));
+        }
+        return result;
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    double getHitRate() {
+        var total = hits.get() + misses.get();
+        return total == 0 ? 0 : (double) hits.get() / total;
+    }
+
+    int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    private static class Key {
+        private final String configKey;
+        private final int claimHash;
+
+        Key(String configKey, int claimHash) {
+            this.configKey = configKey;
+            this.claimHash = claimHash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            var key = (Key) o;
+            return claimHash == key.claimHash && configKey.equals(key.configKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(configKey, claimHash);
+        }
+    }
+
+    private static class Entry {
+        private final List<String> rawEntries;
+        private final Set<String> result;
+        private final long expiresAt;
+
+        Entry(List<String> rawEntries, Set<String> result, long expiresAt) {
+            this.rawEntries = rawEntries;
+            this.result = result;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
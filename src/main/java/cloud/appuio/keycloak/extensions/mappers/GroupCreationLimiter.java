@@ -0,0 +1,115 @@
+package cloud.appuio.keycloak.extensions.mappers;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Limits the automatic creation of groups per realm and IdP, to contain the damage of a misconfigured IdP or include pattern.
+ * <p>
+ * The rate is limited with a token bucket that holds up to one minute's worth of creations.
+ * The quota caps the total number of groups created by the mapper. Counting those requires a scan of the realm's groups,
+ * so the count is cached for a minute and only computed when a group is about to be created.
+ * <p>
+ * Like the removal rate of {@link MassLeaveGuard}, the rate applies per node.
+ * The quota is counted from the realm's groups and therefore applies to the whole cluster, up to the count's cache time.
+ */
+class GroupCreationLimiter {
+
+    private static final long QUOTA_COUNT_TTL_MILLIS = 60_000;
+
+    private final Map<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+    private final Map<String, CreatedCount> createdCounts = new ConcurrentHashMap<>();
+    private final AtomicLong rateLimitedCount = new AtomicLong();
+    private final AtomicLong quotaExceededCount = new AtomicLong();
+
+    /**
+     * Decides whether one more group may be created.
+     *
+     * @param key          identifies the realm and IdP.
+     * @param countCreated counts the groups that were created by the mapper so far, only called if the quota is enabled.
+     * @param nowMillis    the current time in milliseconds.
+     */
+    Decision tryCreate(String key, Limits limits, LongSupplier countCreated, long nowMillis) {
+        if (limits.maxCreatedGroups > 0) {
+            var created = createdCounts.compute(key, (k, count) ->
+                    count == null || nowMillis - count.countedAt >= QUOTA_COUNT_TTL_MILLIS ? new CreatedCount(countCreated.getAsLong(), nowMillis) : count);
+            if (created.count.get() >= limits.maxCreatedGroups) {
+                quotaExceededCount.incrementAndGet();
+                return Decision.QUOTA_EXCEEDED;
+            }
+        }
+        if (limits.maxCreationsPerMinute > 0) {
+            var bucket = buckets.computeIfAbsent(key, k -> new TokenBucket(limits.maxCreationsPerMinute, nowMillis));
+            if (!bucket.tryTake(limits.maxCreationsPerMinute, nowMillis)) {
+                rateLimitedCount.incrementAndGet();
+                return Decision.RATE_LIMITED;
+            }
+        }
+        var created = createdCounts.get(key);
+        if (created != null) {
+            created.count.incrementAndGet();
+        }
+        return Decision.PERMITTED;
+    }
+
+    long getRateLimitedCount() {
+        return rateLimitedCount.get();
+    }
+
+    long getQuotaExceededCount() {
+        return quotaExceededCount.get();
+    }
+
+    enum Decision {
+        PERMITTED, RATE_LIMITED, QUOTA_EXCEEDED
+    }
+
+    static class Limits {
+        final int maxCreationsPerMinute;
+        final int maxCreatedGroups;
+
+        /**
+         * A value of 0 disables the respective limit.
+         */
+        Limits(int maxCreationsPerMinute, int maxCreatedGroups) {
+            this.maxCreationsPerMinute = maxCreationsPerMinute;
+            this.maxCreatedGroups = maxCreatedGroups;
+        }
+
+        boolean isEnabled() {
+            return maxCreationsPerMinute > 0 || maxCreatedGroups > 0;
+        }
+    }
+
+    private static class CreatedCount {
+        private final AtomicLong count;
+        private final long countedAt;
+
+        CreatedCount(long count, long countedAt) {
+            this.count = new AtomicLong(count);
+            this.countedAt = countedAt;
+        }
+    }
+
+    private static class TokenBucket {
+        private double tokens;
+        private long refilledAt;
+
+        TokenBucket(int capacity, long nowMillis) {
+            this.tokens = capacity;
+            this.refilledAt = nowMillis;
+        }
+
+        synchronized boolean tryTake(int perMinute, long nowMillis) {
+            tokens = Math.min(perMinute, tokens + (nowMillis - refilledAt) * perMinute / 60_000.0);
+            refilledAt = nowMillis;
+            if (tokens < 1) {
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+    }
+}
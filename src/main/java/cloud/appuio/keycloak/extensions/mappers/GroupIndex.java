@@ -0,0 +1,152 @@
+package cloud.appuio.keycloak.extensions.mappers;
+
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.RealmModel;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Per-realm index from a group key, e.g. the value of a group attribute, to the group id.
+ * <p>
+ * Keycloak offers no query for groups by attribute, so the index is built with a single scan of the realm's groups.
+ * Lookups resolve the group by id and verify its key, stale entries are dropped.
+ * If keys are missing, the index is rebuilt, but at most once per configured interval,
+ * so a claim with unknown keys does not cause a realm scan on every login.
+ * Only keys that were missing in such a rebuild are known to have no group, see {@link Resolution#getAbsentKeys()}.
+ */
+class GroupIndex {
+
+    private final Map<String, Index> indexes = new ConcurrentHashMap<>();
+    private final long minRebuildIntervalMillis;
+    private final AtomicLong rebuildCount = new AtomicLong();
+
+    /**
+     * @param minRebuildIntervalMillis the minimum time between two rebuilds of the same index.
+     */
+    GroupIndex(long minRebuildIntervalMillis) {
+        this.minRebuildIntervalMillis = minRebuildIntervalMillis;
+    }
+
+    /**
+     * Returns the groups of the realm whose key is one of the given keys.
+     *
+     * @param indexName identifies the key function within the realm, e.g. the attribute name.
+     * @param keyOf     returns the key of a group or null if the group has none.
+     */
+    Resolution resolve(RealmModel realm, String indexName, Function<GroupModel, String> keyOf, Collection<String> keys, long nowMillis) {
+        var index = indexes.computeIfAbsent(realm.getId() + "/" + indexName, key -> new Index());
+        var groups = new ArrayList<GroupModel>(keys.size());
+        var missingKeys = lookup(realm, index, keyOf, keys, groups);
+        if (missingKeys.isEmpty() || !index.tryStartRebuild(nowMillis, minRebuildIntervalMillis)) {
+            return new Resolution(groups, List.of());
+        }
+        build(realm, keyOf, index);
+        rebuildCount.incrementAndGet();
+        return new Resolution(groups, lookup(realm, index, keyOf, missingKeys, groups));
+    }
+
+    /**
+     * Adds a group that was just created, so that it is found without rebuilding the index.
+     */
+    void put(RealmModel realm, String indexName, String key, GroupModel group) {
+        var index = indexes.get(realm.getId() + "/" + indexName);
+        if (index != null && group.getId() != null) {
+            index.groupIds.put(key, group.getId());
+        }
+    }
+
+    long getRebuildCount() {
+        return rebuildCount.get();
+    }
+
+    /**
+     * Returns the keys that were shared by more than one group when the index was last built, with the names of these groups.
+     * The group with the lowest id is used for such a key.
+     */
+    Map<String, List<String>> getCollisions(RealmModel realm, String indexName) {
+        var index = indexes.get(realm.getId() + "/" + indexName);
+        return index == null ? Map.of() : index.collisions;
+    }
+
+    private static List<String> lookup(RealmModel realm, Index index, Function<GroupModel, String> keyOf, Collection<String> keys, List<GroupModel> result) {
+        var groupIds = index.groupIds;
+        var missingKeys = new ArrayList<String>();
+        for (var key : keys) {
+            var groupId = groupIds.get(key);
+            var group = groupId == null ? null : realm.getGroupById(groupId);
+            if (group != null && key.equals(keyOf.apply(group))) {
+                result.add(group);
+                continue;
+            }
+            if (groupId != null) groupIds.remove(key, groupId);
+            missingKeys.add(key);
+        }
+        return missingKeys;
+    }
+
+    private static void build(RealmModel realm, Function<GroupModel, String> keyOf, Index index) {
+        var groupsByKey = new HashMap<String, List<GroupModel>>();
+        realm.getGroupsStream().forEach(group -> {
+            var key = keyOf.apply(group);
+            if (key != null && group.getId() != null) groupsByKey.computeIfAbsent(key, k -> new ArrayList<>(1)).add(group);
+        });
+        var groupIds = new ConcurrentHashMap<String, String>();
+        var collisions = new HashMap<String, List<String>>();
+        groupsByKey.forEach((key, groups) -> {
+            groups.sort(Comparator.comparing(GroupModel::getId));
+            groupIds.put(key, groups.get(0).getId());
+            if (groups.size() > 1) {
+                collisions.put(key, groups.stream().map(GroupModel::getName).map(String::valueOf).collect(Collectors.toList()));
+            }
+        });
+        index.replace(groupIds, collisions);
+    }
+
+    static class Resolution {
+        private final List<GroupModel> groups;
+        private final List<String> absentKeys;
+
+        Resolution(List<GroupModel> groups, List<String> absentKeys) {
+            this.groups = groups;
+            this.absentKeys = absentKeys;
+        }
+
+        List<GroupModel> getGroups() {
+            return groups;
+        }
+
+        /**
+         * @return the keys without a group according to a scan of the realm made during this lookup.
+         * Empty if the scan was skipped because of the rebuild interval, even if keys are missing.
+         */
+        List<String> getAbsentKeys() {
+            return absentKeys;
+        }
+    }
+
+    private static class Index {
+        private volatile Map<String, String> groupIds = new ConcurrentHashMap<>();
+        private volatile Map<String, List<String>> collisions = Map.of();
+        private long lastRebuildMillis = -1;
+
+        synchronized boolean tryStartRebuild(long nowMillis, long minIntervalMillis) {
+            if (lastRebuildMillis >= 0 && nowMillis - lastRebuildMillis < minIntervalMillis) return false;
+            lastRebuildMillis = nowMillis;
+            return true;
+        }
+
+        void replace(Map<String, String> groupIds, Map<String, List<String>> collisions) {
+            this.groupIds = groupIds;
+            this.collisions = collisions;
+        }
+    }
+}
@@ -1,20 +1,72 @@
 package cloud.appuio.keycloak.extensions.mappers;
 
+import org.keycloak.models.Constants;
 import org.keycloak.provider.ProviderConfigProperty;
 
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.regex.Pattern;
+
 public class GroupNameFormatter {
 
+    private static final ParsedConfigCache<List<RewriteRule>> parsedRewriteRules = new ParsedConfigCache<>(RewriteRule::parseAll);
+    private static final Pattern MATCH_KEY_SEPARATORS = Pattern.compile("[\\s\\p{Z}\\p{Pd}]+");
+    private static final Pattern NAMED_GROUP = Pattern.compile("\\(\\?<([a-zA-Z][a-zA-Z0-9]*)>");
+
     private boolean trimWhitespace;
     private boolean toLowerCase;
-    private String trimPrefix = "";
+    private Pattern trimPrefix;
+    private List<RewriteRule> rewriteRules = List.of();
 
     GroupNameFormatter() {
     }
 
     String format(String input) {
         if (input == null) return "";
+        return postProcess(input);
+    }
+
+    /**
+     * Rewrites the input with the first matching rewrite rule and formats the result.
+     * The pattern of each rule is evaluated only once, matching and rewriting happen in the same step.
+     *
+     * @return the formatted input if no rewrite rules are configured,
+     * otherwise the rewritten and formatted input of the first matching rule or empty if no rule matches.
+     */
+    Optional<String> rewrite(String input) {
+        if (input == null) return Optional.empty();
+        if (rewriteRules.isEmpty()) return Optional.of(postProcess(input));
+        for (var rule : rewriteRules) {
+            var matcher = rule.pattern.matcher(input);
+            if (matcher.matches()) {
+                var rewritten = new StringBuilder();
+                matcher.appendReplacement(rewritten, rule.replacement);
+                return Optional.of(postProcess(rewritten.toString()));
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Returns the key used to match group names loosely.
+     * The name is NFKC normalized and case folded, whitespace and dashes are removed,
+     * i.e. "Dev Team", "dev-team" and "ＤＥＶ　ＴＥＡＭ" all have the key "devteam".
+     */
+    static String matchKey(String name) {
+        if (name == null) return null;
+        var normalized = Normalizer.normalize(name, Normalizer.Form.NFKC);
+        var folded = normalized.toUpperCase(Locale.ROOT).toLowerCase(Locale.ROOT);
+        return MATCH_KEY_SEPARATORS.matcher(folded).replaceAll("");
+    }
+
+    private String postProcess(String input) {
         var s = input;
-        s = s.replaceFirst(trimPrefix, "");
+        if (trimPrefix != null) {
+            s = trimPrefix.matcher(s).replaceFirst("");
+        }
         if (trimWhitespace) {
             s = s.trim().replaceAll("\\s+", "-").replaceAll("-+", "-");
         }
@@ -35,18 +87,102 @@ public class GroupNameFormatter {
     }
 
     GroupNameFormatter withTrimPrefix(String prefix) {
-        this.trimPrefix = prefix == null ? "" : prefix;
+        this.trimPrefix = prefix == null || prefix.isEmpty() ? null : Pattern.compile(prefix);
+        return this;
+    }
+
+    /**
+     * Sets the rewrite rules in the format of the {@link #REWRITE_RULES} config property.
+     * The rules are parsed and compiled only once for each distinct config value.
+     *
+     * @throws IllegalArgumentException if a rule is malformed or contains an invalid pattern.
+     */
+    GroupNameFormatter withRewriteRules(String rules) {
+        if (rules == null || rules.isBlank()) {
+            this.rewriteRules = List.of();
+            return this;
+        }
+        this.rewriteRules = parsedRewriteRules.get(rules);
         return this;
     }
 
+    static class RewriteRule {
+        static final String SEPARATOR = "=>";
+
+        private final Pattern pattern;
+        private final String replacement;
+
+        /**
+         * @throws IllegalArgumentException if the pattern is invalid or the replacement references a group the pattern does not have.
+         */
+        RewriteRule(String pattern, String replacement) {
+            this.pattern = Pattern.compile(pattern);
+            this.replacement = replacement;
+            checkGroupReferences(this.pattern, replacement);
+        }
+
+        /**
+         * Checks the replacement with the same rules as {@link java.util.regex.Matcher#appendReplacement},
+         * so that an invalid rule is rejected when it is parsed and not when it is applied during a login.
+         */
+        private static void checkGroupReferences(Pattern pattern, String replacement) {
+            var groupCount = pattern.matcher("").groupCount();
+            for (int i = 0; i < replacement.length(); i++) {
+                var c = replacement.charAt(i);
+                if (c == '\\') {
+                    if (++i == replacement.length()) {
+                        throw new IllegalArgumentException(String.format("rewrite rule replacement [%s]: dangling escape character", replacement));
+                    }
+                } else if (c == '$') {
+                    var next = ++i < replacement.length() ? replacement.charAt(i) : ' ';
+                    if (next == '{') {
+                        var end = replacement.indexOf('}', i);
+                        var name = end < 0 ? "" : replacement.substring(i + 1, end);
+                        if (!namedGroupsOf(pattern).contains(name)) {
+                            throw new IllegalArgumentException(String.format("rewrite rule replacement [%s]: pattern [%s] has no group named [%s]", replacement, pattern, name));
+                        }
+                        i = end;
+                    } else if (next >= '0' && next <= '9') {
+                        if (next - '0' > groupCount) {
+                            throw new IllegalArgumentException(String.format("rewrite rule replacement [%s]: pattern [%s] has no group %c", replacement, pattern, next));
+                        }
+                    } else {
+                        throw new IllegalArgumentException(String.format("rewrite rule replacement [%s]: '$' must be followed by a group number or {name}, use '\\$' for a literal '$'", replacement));
+                    }
+                }
+            }
+        }
+
+        private static List<String> namedGroupsOf(Pattern pattern) {
+            var names = new ArrayList<String>();
+            var matcher = NAMED_GROUP.matcher(pattern.pattern());
+            while (matcher.find()) names.add(matcher.group(1));
+            return names;
+        }
+
+        static List<RewriteRule> parseAll(String rules) {
+            var result = new ArrayList<RewriteRule>();
+            for (var rule : Constants.CFG_DELIMITER_PATTERN.split(rules)) {
+                if (rule.isBlank()) continue;
+                var separator = rule.lastIndexOf(SEPARATOR);
+                if (separator < 0) {
+                    throw new IllegalArgumentException(String.format("rewrite rule [%s] must have the form 'pattern %s replacement'", rule, SEPARATOR));
+                }
+                result.add(new RewriteRule(rule.substring(0, separator).trim(), rule.substring(separator + SEPARATOR.length()).trim()));
+            }
+            return List.copyOf(result);
+        }
+    }
+
     public static final String TRIM_PREFIX_PROPERTY = "trim_prefix";
     public static final String TRIM_WHITESPACE_PROPERTY = "trim_whitespace";
     public static final String TO_LOWERCASE_PROPERTY = "to_lowercase";
+    public static final String REWRITE_RULES_PROPERTY = "rewrite_rules";
 
     public static final ProviderConfigProperty TRIM_PREFIX = new ProviderConfigProperty(
             TRIM_PREFIX_PROPERTY, "Trim Prefix",
             "Removes the first occurrence of the given regex pattern. " +
-                    "Trimming the prefix occurs before trimming whitespaces (if enabled).",
+                    "Trimming the prefix occurs after the rewrite rules and before trimming whitespaces (if enabled).",
             ProviderConfigProperty.STRING_TYPE, ""
     );
 
@@ -62,4 +198,14 @@ public class GroupNameFormatter {
             "Transforms the strings to lower case. ",
             ProviderConfigProperty.BOOLEAN_TYPE, false
     );
+
+    public static final ProviderConfigProperty REWRITE_RULES = new ProviderConfigProperty(
+            REWRITE_RULES_PROPERTY, "Rewrite rules",
+            "List of rules in the form 'pattern => replacement', i.e. '^CN=([^,]+),OU=Teams.*$ => team-$1'. " +
+                    "The rules are tried in order and the first rule whose regex pattern matches the whole entry rewrites it, " +
+                    "capture groups can be referenced with $1, $2, etc. " +
+                    "Entries that match no rule are ignored. " +
+                    "Rewriting occurs before trimming the prefix, whitespaces and lowering case.",
+            ProviderConfigProperty.MULTIVALUED_STRING_TYPE, null
+    );
 }
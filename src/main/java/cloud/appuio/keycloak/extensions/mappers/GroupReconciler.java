@@ -0,0 +1,114 @@
+package cloud.appuio.keycloak.extensions.mappers;
+
+import org.keycloak.models.GroupModel;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Computes the membership changes needed to bring a user's groups in line with the group names of a claim.
+ * <p>
+ * The realm's groups and the user's groups are each read exactly once.
+ * Membership is determined by the ids of the groups the user keeps and their ancestors,
+ * which matches {@link org.keycloak.models.UserModel#isMemberOf(GroupModel)} without walking the hierarchy for every candidate.
+ */
+class GroupReconciler {
+
+    private GroupReconciler() {
+    }
+
+    static Delta reconcile(Stream<GroupModel> realmGroups, Stream<GroupModel> userGroups, Set<String> groupNamesInClaim) {
+        return reconcile(realmGroups, userGroups, groupNamesInClaim, GroupModel::getName);
+    }
+
+    /**
+     * Matches groups by the given key instead of their name, e.g. an external id stored in a group attribute.
+     *
+     * @param candidateGroups the groups that may match a key of the claim, e.g. the realm's groups or the result of an index lookup.
+     * @param keyOf           returns the key of a group or null if the group has none.
+     */
+    static Delta reconcile(Stream<GroupModel> candidateGroups, Stream<GroupModel> userGroups, Set<String> keysInClaim, Function<GroupModel, String> keyOf) {
+        var claimedGroups = candidateGroups
+                .filter(group -> keysInClaim.contains(keyOf.apply(group)))
+                .collect(Collectors.toList());
+        var currentGroups = userGroups.collect(Collectors.toList());
+
+        var resolvedKeys = claimedGroups.stream().map(keyOf).collect(Collectors.toSet());
+        var groupsToCreate = keysInClaim.stream()
+                .filter(key -> !resolvedKeys.contains(key))
+                .sorted()
+                .collect(Collectors.toList());
+
+        var groupsToKeep = currentGroups.stream()
+                .filter(group -> keysInClaim.contains(keyOf.apply(group)))
+                .collect(Collectors.toList());
+        var groupsToLeave = currentGroups.stream()
+                .filter(group -> !keysInClaim.contains(keyOf.apply(group)))
+                .collect(Collectors.toList());
+
+        var memberGroupIds = new HashSet<String>();
+        groupsToKeep.forEach(group -> addWithAncestors(group, memberGroupIds));
+        var groupsToJoin = claimedGroups.stream()
+                .filter(group -> !memberGroupIds.contains(group.getId()))
+                .collect(Collectors.toList());
+
+        return new Delta(groupsToCreate, groupsToJoin, groupsToLeave, groupsToKeep);
+    }
+
+    private static void addWithAncestors(GroupModel group, Set<String> groupIds) {
+        for (var current = group; current != null && groupIds.add(current.getId()); current = current.getParent()) {
+            // walk up until the root or an already visited group
+        }
+    }
+
+    /**
+     * The computed changes. The keys in {@link #getGroupsToCreate()} still have to be created and joined.
+     */
+    static class Delta {
+        private final List<String> groupsToCreate;
+        private final List<GroupModel> groupsToJoin;
+        private final List<GroupModel> groupsToLeave;
+        private final List<GroupModel> groupsToKeep;
+
+        Delta(List<String> groupsToCreate, List<GroupModel> groupsToJoin, List<GroupModel> groupsToLeave, List<GroupModel> groupsToKeep) {
+            this.groupsToCreate = groupsToCreate;
+            this.groupsToJoin = groupsToJoin;
+            this.groupsToLeave = groupsToLeave;
+            this.groupsToKeep = groupsToKeep;
+        }
+
+        List<String> getGroupsToCreate() {
+            return groupsToCreate;
+        }
+
+        List<GroupModel> getGroupsToJoin() {
+            return groupsToJoin;
+        }
+
+        List<GroupModel> getGroupsToLeave() {
+            return groupsToLeave;
+        }
+
+        List<GroupModel> getGroupsToKeep() {
+            return groupsToKeep;
+        }
+
+        int getCurrentGroupCount() {
+            return groupsToKeep.size() + groupsToLeave.size();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("create [%s], join [%s], leave [%s]", String.join(", ", groupsToCreate), names(groupsToJoin), names(groupsToLeave));
+        }
+
+        private static String names(List<GroupModel> groups) {
+            return groups.stream().map(GroupModel::getName).map(Objects::toString).collect(Collectors.joining(", "));
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package cloud.appuio.keycloak.extensions.mappers;
+
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Collectors;
+
+/**
+ * Keeps track of the group memberships synced by {@link ClaimToGroupMapper} in user attributes, per IdP.
+ * <p>
+ * The confirmation attribute holds the epoch day on which a claim last confirmed the memberships.
+ * Storing the day instead of a timestamp means the attributes are written at most once per day and user,
+ * and that expired users can be found with an exact-match attribute query.
+ */
+class ManagedMemberships {
+
+    static final String CONFIRMED_ATTRIBUTE_PREFIX = "idp_groups_confirmed.";
+    static final String GROUPS_ATTRIBUTE_PREFIX = "idp_groups.";
+
+    private ManagedMemberships() {
+    }
+
+    static String confirmedAttribute(String identityProviderAlias) {
+        return CONFIRMED_ATTRIBUTE_PREFIX + identityProviderAlias;
+    }
+
+    static String groupsAttribute(String identityProviderAlias) {
+        return GROUPS_ATTRIBUTE_PREFIX + identityProviderAlias;
+    }
+
+    /**
+     * Stamps the given groups as confirmed on the given day, writing the attributes only if they changed.
+     */
+    static void confirm(RealmModel realm, UserModel user, String identityProviderAlias, List<GroupModel> groups, long epochDay, ChangeRecorder changes) {
+        var groupIds = groups.stream()
+                .map(GroupModel::getId)
+                .filter(Objects::nonNull)
+                .sorted()
+                .collect(Collectors.toList());
+        var groupsAttribute = groupsAttribute(identityProviderAlias);
+        if (!user.getAttributeStream(groupsAttribute).collect(Collectors.toList()).equals(groupIds)) {
+            user.setAttribute(groupsAttribute, groupIds);
+            changes.record(realm.getName(), identityProviderAlias, user.getUsername(), ChangeJournal.ChangeType.ATTRIBUTE_SET, groupsAttribute, groupIds);
+        }
+        var confirmedAttribute = confirmedAttribute(identityProviderAlias);
+        var day = String.valueOf(epochDay);
+        if (!day.equals(user.getFirstAttribute(confirmedAttribute))) {
+            user.setSingleAttribute(confirmedAttribute, day);
+            changes.record(realm.getName(), identityProviderAlias, user.getUsername(), ChangeJournal.ChangeType.ATTRIBUTE_SET, confirmedAttribute, List.of(day));
+        }
+    }
+
+    /**
+     * Removes the user from the managed groups if the memberships were last confirmed on the given day.
+     * The names of the managed groups are removed from the mapper's groups attribute as well,
+     * so that tokens built from it no longer carry the expired groups.
+     *
+     * @param userGroupsAttribute the mapper's {@link ClaimToGroupMapper#GROUPS_ATTRIBUTE}, or empty if not configured.
+     * @return the names of the groups the user left, or null if the memberships were not confirmed on that day.
+     */
+    static List<String> expire(RealmModel realm, UserModel user, String identityProviderAlias, String userGroupsAttribute, long epochDay, ChangeRecorder changes) {
+        var confirmedAttribute = confirmedAttribute(identityProviderAlias);
+        var day = String.valueOf(epochDay);
+        if (!day.equals(user.getFirstAttribute(confirmedAttribute))) {
+            return null;
+        }
+        var groupsAttribute = groupsAttribute(identityProviderAlias);
+        var managedGroupIds = user.getAttributeStream(groupsAttribute).collect(Collectors.toList());
+        var managedGroups = managedGroupIds.stream()
+                .map(realm::getGroupById)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
+        var leftGroupNames = managedGroups.stream()
+                .filter(user::isMemberOf)
+                .peek(user::leaveGroup)
+                .map(GroupModel::getName)
+                .collect(Collectors.toList());
+        if (!userGroupsAttribute.isEmpty()) {
+            removeGroupNames(realm, user, identityProviderAlias, userGroupsAttribute, managedGroups, changes);
+        }
+        user.removeAttribute(groupsAttribute);
+        changes.record(realm.getName(), identityProviderAlias, user.getUsername(), ChangeJournal.ChangeType.ATTRIBUTE_REMOVED, groupsAttribute, managedGroupIds);
+        user.removeAttribute(confirmedAttribute);
+        changes.record(realm.getName(), identityProviderAlias, user.getUsername(), ChangeJournal.ChangeType.ATTRIBUTE_REMOVED, confirmedAttribute, List.of(day));
+        return leftGroupNames;
+    }
+
+    private static void removeGroupNames(RealmModel realm, UserModel user, String identityProviderAlias, String attributeKey, List<GroupModel> groups, ChangeRecorder changes) {
+        var groupNames = groups.stream().map(GroupModel::getName).collect(Collectors.toSet());
+        var currentValues = user.getAttributeStream(attributeKey).collect(Collectors.toList());
+        var remainingValues = currentValues.stream()
+                .filter(value -> !groupNames.contains(value))
+                .collect(Collectors.toList());
+        if (remainingValues.size() == currentValues.size()) return;
+        if (remainingValues.isEmpty()) {
+            user.removeAttribute(attributeKey);
+            changes.record(realm.getName(), identityProviderAlias, user.getUsername(), ChangeJournal.ChangeType.ATTRIBUTE_REMOVED, attributeKey, currentValues);
+        } else {
+            user.setAttribute(attributeKey, remainingValues);
+            changes.record(realm.getName(), identityProviderAlias, user.getUsername(), ChangeJournal.ChangeType.ATTRIBUTE_SET, attributeKey, remainingValues);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package cloud.appuio.keycloak.extensions.mappers;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Protects group memberships against a sudden shrinkage of the group claim, e.g. during an IdP outage.
+ * <p>
+ * Removals are refused if a single login would remove more groups than the configured thresholds allow,
+ * and deferred if the number of removals per minute in the realm is exhausted.
+ * Refused or deferred removals are not lost: they are attempted again on the user's next login.
+ * <p>
+ * The removal rate is tracked in memory, so in a cluster each node enforces the limit on its own.
+ */
+class MassLeaveGuard {
+
+    private static final long WINDOW_MILLIS = 60_000;
+
+    private final Map<String, RemovalWindow> windows = new ConcurrentHashMap<>();
+    private final AtomicLong shrinkTrips = new AtomicLong();
+    private final AtomicLong rateLimitTrips = new AtomicLong();
+
+    /**
+     * Checks whether the user may leave the given amount of groups at once.
+     *
+     * @param currentCount the number of groups the user is currently member of.
+     * @param leaveCount   the number of groups the user would leave.
+     * @return false if the claim shrank by more than the configured thresholds.
+     */
+    boolean permitsShrink(int currentCount, int leaveCount, Limits limits) {
+        if (leaveCount == 0 || !limits.exceedsShrinkThreshold(currentCount, leaveCount)) return true;
+        shrinkTrips.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Takes up to the requested amount of removals from this node's budget for the realm in the current minute.
+     *
+     * @param realmName  the realm, used as key for the rate limit.
+     * @param leaveCount the number of groups the user would leave.
+     * @param nowMillis  the current time in milliseconds.
+     * @return the number of groups the user may leave now, the remaining ones are deferred.
+     */
+    int acquireRemovals(String realmName, int leaveCount, Limits limits, long nowMillis) {
+        if (leaveCount == 0 || limits.maxLeavesPerMinute <= 0) return leaveCount;
+        var window = windows.computeIfAbsent(realmName, key -> new RemovalWindow());
+        var granted = window.acquire(leaveCount, limits.maxLeavesPerMinute, nowMillis);
+        if (granted < leaveCount) {
+            rateLimitTrips.incrementAndGet();
+        }
+        return granted;
+    }
+
+    long getShrinkTrips() {
+        return shrinkTrips.get();
+    }
+
+    long getRateLimitTrips() {
+        return rateLimitTrips.get();
+    }
+
+    static class Limits {
+        final int maxLeaveCount;
+        final int maxLeavePercentage;
+        final int maxLeavesPerMinute;
+
+        /**
+         * A value of 0 disables the respective limit.
+         */
+        Limits(int maxLeaveCount, int maxLeavePercentage, int maxLeavesPerMinute) {
+            this.maxLeaveCount = maxLeaveCount;
+            this.maxLeavePercentage = maxLeavePercentage;
+            this.maxLeavesPerMinute = maxLeavesPerMinute;
+        }
+
+        /**
+         * If both the absolute and relative threshold are set, both must be exceeded.
+         * This avoids blocking users that legitimately leave their only group.
+         */
+        boolean exceedsShrinkThreshold(int currentCount, int leaveCount) {
+            var exceedsCount = maxLeaveCount > 0 && leaveCount > maxLeaveCount;
+            var exceedsPercentage = maxLeavePercentage > 0 && currentCount > 0
+                    && (long) leaveCount * 100 > (long) maxLeavePercentage * currentCount;
+            if (maxLeaveCount > 0 && maxLeavePercentage > 0) {
+                return exceedsCount && exceedsPercentage;
+            }
+            return exceedsCount || exceedsPercentage;
+        }
+    }
+
+    private static class RemovalWindow {
+        private long windowStart;
+        private int used;
+
+        synchronized int acquire(int permits, int limit, long nowMillis) {
+            if (nowMillis - windowStart >= WINDOW_MILLIS) {
+                windowStart = nowMillis - nowMillis % WINDOW_MILLIS;
+                used = 0;
+            }
+            var granted = Math.min(permits, Math.max(0, limit - used));
+            used += granted;
+            return granted;
+        }
+    }
+}
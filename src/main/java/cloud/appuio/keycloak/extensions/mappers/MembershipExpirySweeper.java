@@ -0,0 +1,114 @@
+package cloud.appuio.keycloak.extensions.mappers;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.timer.ScheduledTask;
+
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Background task that removes the memberships of users that were not confirmed by a claim within the mapper's TTL.
+ * <p>
+ * For each {@link ClaimToGroupMapper} with a TTL, the sweeper looks up users by the exact confirmation day
+ * (see {@link ManagedMemberships}) for each day that has expired within the lookback window.
+ * Keycloak's attribute query only supports exact values, so memberships confirmed before the lookback window are never expired.
+ * The ids of the expired users are looked up first, then the users are processed in batches, each batch in its own transaction,
+ * so a sweep never holds long-running locks.
+ */
+class MembershipExpirySweeper implements ScheduledTask {
+    private static final Logger logger = Logger.getLogger(MembershipExpirySweeper.class);
+
+    static final String TASK_NAME = "appuio-membership-expiry-sweeper";
+
+    private final String mapperId;
+    private final int batchSize;
+    private final int lookbackDays;
+    private final ChangeJournal journal;
+
+    MembershipExpirySweeper(String mapperId, int batchSize, int lookbackDays, ChangeJournal journal) {
+        this.mapperId = mapperId;
+        this.batchSize = batchSize;
+        this.lookbackDays = lookbackDays;
+        this.journal = journal;
+    }
+
+    @Override
+    public void run(KeycloakSession session) {
+        var targets = findTargets(session);
+        var today = LocalDate.now(ZoneOffset.UTC).toEpochDay();
+        for (var target : targets) {
+            var lastExpiredDay = today - target.ttlDays - 1;
+            for (var day = lastExpiredDay - lookbackDays; day <= lastExpiredDay; day++) {
+                sweepDay(session, target, day);
+            }
+        }
+    }
+
+    private List<Target> findTargets(KeycloakSession session) {
+        return session.realms().getRealmsStream()
+                .flatMap(realm -> realm.getIdentityProviderMappersStream()
+                        .filter(mapperModel -> mapperId.equals(mapperModel.getIdentityProviderMapper()))
+                        .map(mapperModel -> {
+                            var config = new ClaimToGroupMapper.MapperConfig(mapperModel.getConfig());
+                            return new Target(realm.getId(), realm.getName(), mapperModel.getIdentityProviderAlias(),
+                                    config.getMembershipTtlDays(), config.getGroupsAttribute());
+                        }))
+                .filter(target -> target.ttlDays > 0)
+                .collect(Collectors.toList());
+    }
+
+    void sweepDay(KeycloakSession session, Target target, long day) {
+        var realm = session.realms().getRealm(target.realmId);
+        if (realm == null) return;
+        var userIds = session.users()
+                .searchForUserByUserAttributeStream(realm, ManagedMemberships.confirmedAttribute(target.identityProviderAlias), String.valueOf(day))
+                .map(UserModel::getId)
+                .collect(Collectors.toList());
+        var expiredUsers = new int[]{0};
+        for (int from = 0; from < userIds.size(); from += batchSize) {
+            var batch = userIds.subList(from, Math.min(from + batchSize, userIds.size()));
+            KeycloakModelUtils.runJobInTransaction(session.getKeycloakSessionFactory(), batchSession -> {
+                var batchRealm = batchSession.realms().getRealm(target.realmId);
+                if (batchRealm == null) return;
+                var changes = journal.afterCommit(batchSession);
+                for (var userId : batch) {
+                    var user = batchSession.users().getUserById(batchRealm, userId);
+                    if (user == null) continue;
+                    var leftGroupNames = ManagedMemberships.expire(batchRealm, user, target.identityProviderAlias, target.groupsAttribute, day, changes);
+                    // null if the user logged in since the lookup
+                    if (leftGroupNames == null) continue;
+                    expiredUsers[0]++;
+                    changes.record(target.realmName, target.identityProviderAlias, user.getUsername(),
+                            ChangeJournal.ChangeType.MEMBERSHIP_EXPIRED, null, leftGroupNames);
+                    logger.debugf("Realm [%s], IdP [%s]: membership expired for user [%s], left groups: [%s]",
+                            target.realmName, target.identityProviderAlias, user.getUsername(), String.join(", ", leftGroupNames));
+                }
+            });
+        }
+        if (expiredUsers[0] > 0) {
+            logger.infof("Realm [%s], IdP [%s]: removed expired memberships of %d users confirmed on %s",
+                    target.realmName, target.identityProviderAlias, expiredUsers[0], LocalDate.ofEpochDay(day));
+        }
+    }
+
+    static class Target {
+        private final String realmId;
+        private final String realmName;
+        private final String identityProviderAlias;
+        private final int ttlDays;
+        private final String groupsAttribute;
+
+        Target(String realmId, String realmName, String identityProviderAlias, int ttlDays, String groupsAttribute) {
+            this.realmId = realmId;
+            this.realmName = realmName;
+            this.identityProviderAlias = identityProviderAlias;
+            this.ttlDays = ttlDays;
+            this.groupsAttribute = groupsAttribute;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package cloud.appuio.keycloak.extensions.mappers;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Parses each distinct config value only once.
+ * Invalid values are remembered as well, so that a misconfigured mapper does not parse them again on every login.
+ */
+class ParsedConfigCache<T> {
+
+    private final Map<String, T> parsed = new ConcurrentHashMap<>();
+    private final Map<String, String> errors = new ConcurrentHashMap<>();
+    private final Function<String, T> parser;
+
+    /**
+     * @param parser parses a config value and throws {@link IllegalArgumentException} if it is invalid.
+     */
+    ParsedConfigCache(Function<String, T> parser) {
+        this.parser = parser;
+    }
+
+    /**
+     * @throws IllegalArgumentException with the message of the first failure if the value is invalid.
+     */
+    T get(String value) {
+        var error = errors.get(value);
+        if (error != null) throw new IllegalArgumentException(error);
+        try {
+            return parsed.computeIfAbsent(value, parser);
+        } catch (IllegalArgumentException e) {
+            errors.put(value, e.getMessage());
+            throw e;
+        }
+    }
+}
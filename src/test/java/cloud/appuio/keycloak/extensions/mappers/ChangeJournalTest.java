@@ -0,0 +1,127 @@
+package cloud.appuio.keycloak.extensions.mappers;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakTransaction;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.mockito.Mockito;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ChangeJournalTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testRecord_GivenChanges_ThenReadBackInOrder() throws IOException {
+        var path = tempDir.resolve("journal.jsonl");
+        var subject = ChangeJournal.open(path, 1024 * 1024, 100);
+
+        subject.record("realm", "idp", "user", ChangeJournal.ChangeType.GROUP_JOINED, null, List.of("Rose Canyon", "Sky Valley"));
+        subject.record("realm", "idp", "user", ChangeJournal.ChangeType.ATTRIBUTE_SET, "groups", List.of("Rose Canyon"));
+        subject.close();
+
+        try (var records = ChangeJournalReader.read(path)) {
+            var result = records.collect(Collectors.toList());
+            assertThat(result).extracting(record -> record.type)
+                    .containsExactly(ChangeJournal.ChangeType.GROUP_JOINED, ChangeJournal.ChangeType.ATTRIBUTE_SET);
+            assertThat(result.get(0).values).containsExactly("Rose Canyon", "Sky Valley");
+            assertThat(result.get(1).key).isEqualTo("groups");
+            assertThat(result.get(1).user).isEqualTo("user");
+        }
+        assertThat(subject.getWrittenCount()).isEqualTo(2);
+        assertThat(subject.getDroppedCount()).isZero();
+    }
+
+    @Test
+    void testRecord_GivenNoValues_ThenSkip() throws IOException {
+        var path = tempDir.resolve("journal.jsonl");
+        var subject = ChangeJournal.open(path, 1024 * 1024, 100);
+
+        subject.record("realm", "idp", "user", ChangeJournal.ChangeType.GROUP_LEFT, null, List.of());
+        subject.close();
+
+        assertThat(subject.getWrittenCount()).isZero();
+        assertThat(Files.exists(path)).isFalse();
+    }
+
+    @Test
+    void testRecord_GivenFileExceedsMaxSize_ThenRotateWithoutDeleting() throws IOException {
+        var path = tempDir.resolve("journal.jsonl");
+        var subject = ChangeJournal.open(path, 200, 100);
+
+        for (int i = 0; i < 10; i++) {
+            subject.record("realm", "idp", "user-" + i, ChangeJournal.ChangeType.GROUP_JOINED, null, List.of("Rose Canyon"));
+        }
+        subject.close();
+
+        assertThat(Files.size(path)).isLessThanOrEqualTo(200);
+        assertThat(ChangeJournal.rotatedPaths(path)).hasSizeGreaterThan(2);
+        try (var records = ChangeJournalReader.read(path)) {
+            var users = records.map(record -> record.user).collect(Collectors.toList());
+            assertThat(users).hasSize(10).isSorted();
+        }
+    }
+
+    @Test
+    void testRecord_GivenWriteFails_ThenRetryUntilWritten() throws Exception {
+        var blocker = Files.createFile(tempDir.resolve("journal"));
+        var path = blocker.resolve("journal.jsonl");
+        var subject = ChangeJournal.open(path, 1024 * 1024, 100);
+
+        subject.record("realm", "idp", "user", ChangeJournal.ChangeType.GROUP_JOINED, null, List.of("Rose Canyon"));
+        Thread.sleep(300);
+        Files.delete(blocker);
+        subject.close();
+
+        assertThat(subject.getDroppedCount()).isZero();
+        try (var records = ChangeJournalReader.read(path)) {
+            assertThat(records.map(record -> record.user)).containsExactly("user");
+        }
+    }
+
+    @Test
+    void testAfterCommit_GivenCommittedAndRolledBackTransactions_ThenRecordCommittedChangesOnly() throws IOException {
+        var path = tempDir.resolve("journal.jsonl");
+        var subject = ChangeJournal.open(path, 1024 * 1024, 100);
+
+        var committed = subject.afterCommit(newSession());
+        committed.record("realm", "idp", "committed", ChangeJournal.ChangeType.GROUP_JOINED, null, List.of("Rose Canyon"));
+        var rolledBack = subject.afterCommit(newSession());
+        rolledBack.record("realm", "idp", "rolled-back", ChangeJournal.ChangeType.GROUP_JOINED, null, List.of("Rose Canyon"));
+        ((KeycloakTransaction) rolledBack).rollback();
+        ((KeycloakTransaction) committed).commit();
+        subject.close();
+
+        try (var records = ChangeJournalReader.read(path)) {
+            assertThat(records.map(record -> record.user)).containsExactly("committed");
+        }
+    }
+
+    @Test
+    void testDisabled_ThenIgnoreChanges() {
+        ChangeJournal.DISABLED.record("realm", "idp", "user", ChangeJournal.ChangeType.GROUP_JOINED, null, List.of("Rose Canyon"));
+
+        assertThat(ChangeJournal.DISABLED.isEnabled()).isFalse();
+        assertThat(ChangeJournal.DISABLED.getWrittenCount()).isZero();
+    }
+
+    private KeycloakSession newSession() {
+        var session = Mockito.mock(KeycloakSession.class);
+        var transactionManager = Mockito.mock(KeycloakTransactionManager.class);
+        Mockito.when(session.getTransactionManager()).thenReturn(transactionManager);
+        Mockito.doAnswer(invocation -> {
+            invocation.getArgument(0, KeycloakTransaction.class).begin();
+            return null;
+        }).when(transactionManager).enlistAfterCompletion(Mockito.any());
+        return session;
+    }
+}
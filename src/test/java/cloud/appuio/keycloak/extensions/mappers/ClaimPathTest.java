@@ -0,0 +1,184 @@
+package cloud.appuio.keycloak.extensions.mappers;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.keycloak.broker.oidc.KeycloakOIDCIdentityProvider;
+import org.keycloak.broker.oidc.OIDCIdentityProvider;
+import org.keycloak.broker.oidc.mappers.AbstractClaimMapper;
+import org.keycloak.broker.provider.BrokeredIdentityContext;
+import org.keycloak.representations.JsonWebToken;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class ClaimPathTest {
+
+    @Test
+    void testSelect_GivenNestedPath_ThenReturnSameValueAsKeycloakLookup() {
+        var token = new JsonWebToken();
+        token.setOtherClaims("address", Map.of("locality", "Zurich"));
+        token.setOtherClaims("my.groups", List.of("rose-canyon", "sapphire-stars"));
+        var context = newContext(token);
+
+        assertThat(ClaimPath.compile("address.locality").select(context))
+                .contains(List.of(AbstractClaimMapper.getClaimValue(context, "address.locality").toString()));
+        assertThat(ClaimPath.compile("my\\.groups").select(context))
+                .contains(castToList(AbstractClaimMapper.getClaimValue(context, "my\\.groups")));
+    }
+
+    @Test
+    void testSelect_GivenMissingClaim_ThenReturnEmpty() {
+        var token = new JsonWebToken();
+        token.setOtherClaims("groups", List.of("rose-canyon"));
+
+        var result = ClaimPath.compile("roles").select(newContext(token));
+
+        assertThat(result).isEmpty();
+    }
+
+    @Test
+    void testSelect_GivenPresentParent_WhenChildMissing_ThenFallThroughToNextSource() {
+        var accessToken = new JsonWebToken();
+        accessToken.setOtherClaims("address", Map.of("country", "CH"));
+        var idToken = new JsonWebToken();
+        idToken.setOtherClaims("address", Map.of("locality", "Zurich"));
+        var context = newContext(accessToken);
+        context.getContextData().put(KeycloakOIDCIdentityProvider.VALIDATED_ID_TOKEN, idToken);
+
+        assertThat(ClaimPath.compile("address.locality").select(context)).contains(List.of("Zurich"));
+        assertThat(ClaimPath.compile("address.locality").select(newContext(accessToken))).isEmpty();
+    }
+
+    @Test
+    void testSelect_GivenPresentParent_WhenChildMissingBeforeWildcard_ThenFallThroughToNextSource() {
+        var accessToken = new JsonWebToken();
+        accessToken.setOtherClaims("org", Map.of("name", "APPUiO"));
+        var idToken = new JsonWebToken();
+        idToken.setOtherClaims("org", Map.of("groups", List.of(Map.of("name", "Rose Canyon"), Map.of("id", "sky-valley"))));
+        var context = newContext(accessToken);
+        context.getContextData().put(KeycloakOIDCIdentityProvider.VALIDATED_ID_TOKEN, idToken);
+
+        assertThat(ClaimPath.compile("org.groups[*].name").select(context)).contains(List.of("Rose Canyon"));
+        assertThat(ClaimPath.compile("org.groups[*].name").select(newContext(accessToken))).isEmpty();
+    }
+
+    @Test
+    void testSelect_GivenSubject_ThenReturnSubject() {
+        var token = new JsonWebToken();
+        token.subject("user-id");
+
+        var result = ClaimPath.compile("sub").select(newContext(token));
+
+        assertThat(result).contains(List.of("user-id"));
+    }
+
+    @Test
+    void testSelect_GivenArrayWildcard_WhenProjectingField_ThenReturnFieldOfEachElement() {
+        var token = new JsonWebToken();
+        token.setOtherClaims("groups", List.of(
+                Map.of("displayName", "Rose Canyon"),
+                Map.of("displayName", "Sapphire Stars"),
+                Map.of("id", "no-name")));
+
+        var result = ClaimPath.compile("groups[*].displayName").select(newContext(token));
+
+        assertThat(result).contains(List.of("Rose Canyon", "Sapphire Stars"));
+    }
+
+    @Test
+    void testSelect_GivenFilter_ThenReturnMatchingElementsOnly() {
+        var token = new JsonWebToken();
+        token.setOtherClaims("groups", List.of(
+                Map.of("type", "team", "displayName", "Rose Canyon"),
+                Map.of("type", "role", "displayName", "Admins")));
+
+        var result = ClaimPath.compile("groups[?type=team].displayName").select(newContext(token));
+
+        assertThat(result).contains(List.of("Rose Canyon"));
+    }
+
+    @Test
+    void testSelect_GivenObjectWildcard_ThenFlattenNestedLists() {
+        var token = new JsonWebToken();
+        token.setOtherClaims("tenants", Map.of(
+                "rose", Map.of("roles", List.of("admin")),
+                "sapphire", Map.of("roles", List.of("viewer", "editor"))));
+
+        var result = ClaimPath.compile("tenants.*.roles[*]").select(newContext(token));
+
+        assertThat(result).hasValueSatisfying(values -> assertThat(values).containsExactlyInAnyOrder("admin", "viewer", "editor"));
+    }
+
+    @Test
+    void testSelect_GivenUserInfo_WhenNoTokenContainsClaim_ThenSelectFromJson() throws Exception {
+        var context = newContext(new JsonWebToken());
+        context.getContextData().put(OIDCIdentityProvider.USER_INFO, new ObjectMapper().readTree(
+                "{\"groups\":[{\"displayName\":\"Rose Canyon\"},{\"displayName\":\"Sapphire Stars\"}]}"));
+
+        var result = ClaimPath.compile("groups[1].displayName").select(context);
+
+        assertThat(result).contains(List.of("Sapphire Stars"));
+    }
+
+    @Test
+    void testSelectPairs_GivenElementWithoutField_ThenPairValuesOfSameElementOnly() {
+        var token = new JsonWebToken();
+        token.setOtherClaims("groups", List.of(
+                Map.of("id", "0a1b"),
+                Map.of("id", "2c3d", "displayName", "Sapphire Stars"),
+                Map.of("displayName", "Rose Canyon")));
+
+        var result = ClaimPath.compile("groups[*].id").selectPairs(newContext(token), ClaimPath.compile("groups[*].displayName"));
+
+        assertThat(result).contains(Map.of("2c3d", "Sapphire Stars"));
+    }
+
+    @Test
+    void testSelectPairs_GivenPlainLists_ThenPairByPositionIfSizesMatch() {
+        var token = new JsonWebToken();
+        token.setOtherClaims("group_ids", List.of("0a1b", "2c3d"));
+        token.setOtherClaims("group_names", List.of("Rose Canyon", "Sapphire Stars"));
+        token.setOtherClaims("roles", List.of("admin"));
+
+        assertThat(ClaimPath.compile("group_ids").selectPairs(newContext(token), ClaimPath.compile("group_names")))
+                .contains(Map.of("0a1b", "Rose Canyon", "2c3d", "Sapphire Stars"));
+        assertThat(ClaimPath.compile("group_ids").selectPairs(newContext(token), ClaimPath.compile("roles"))).isEmpty();
+    }
+
+    @Test
+    void testSelectPairs_GivenDifferentElements_ThenReturnEmpty() {
+        var token = new JsonWebToken();
+        token.setOtherClaims("groups", List.of(Map.of("id", "0a1b", "type", "team")));
+        token.setOtherClaims("teams", List.of(Map.of("displayName", "Rose Canyon")));
+
+        assertThat(ClaimPath.compile("groups[*].id").selectPairs(newContext(token), ClaimPath.compile("teams[*].displayName"))).isEmpty();
+        assertThat(ClaimPath.compile("groups[*].id").selectPairs(newContext(token), ClaimPath.compile("groups[?type=team].id"))).isEmpty();
+    }
+
+    @Test
+    void testCompile_GivenSameExpression_ThenReturnSameInstance() {
+        assertThat(ClaimPath.compile("groups[*].name")).isSameAs(ClaimPath.compile("groups[*].name"));
+    }
+
+    @Test
+    void testCompile_GivenMalformedExpression_ThenThrow() {
+        assertThatThrownBy(() -> ClaimPath.compile("groups[*")).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> ClaimPath.compile("groups[x]")).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> ClaimPath.compile("groups..name")).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> ClaimPath.compile("groups[?type]")).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    private BrokeredIdentityContext newContext(JsonWebToken token) {
+        var context = new BrokeredIdentityContext("id");
+        context.getContextData().put(KeycloakOIDCIdentityProvider.VALIDATED_ACCESS_TOKEN, token);
+        return context;
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<String> castToList(Object list) {
+        return (List<String>) list;
+    }
+}
@@ -122,6 +122,122 @@ class ClaimToAttributeMapperTest {
         Mockito.verify(user, Mockito.never()).setAttribute(Mockito.anyString(), Mockito.anyList());
     }
 
+    @Test
+    void testAssignClaimToAttribute_GivenClaimWithMultipleEntries_WhenPriorityMode_ThenSetEntryOfHighestPriority() {
+        var user = Mockito.mock(UserModel.class);
+
+        Mockito.when(user.getAttributeStream(attributeKey))
+                .thenReturn(Stream.empty());
+
+        var subject = new ClaimToAttributeMapper();
+        var config = newMapperConfig();
+        setSelectionMode(config, ClaimToAttributeMapper.SelectionMode.PRIORITY);
+        config.map.put(ClaimToAttributeMapper.PRIORITY_PATTERNS_PROPERTY, "admin-.*##team-.*");
+
+        subject.assignClaimToAttribute(realmName, idpAlias, user, List.of("other", "team-rose", "admin-sapphire", "admin-canyon"), config);
+
+        Mockito.verify(user).setAttribute(attributeKey, List.of("admin-sapphire"));
+    }
+
+    @Test
+    void testAssignClaimToAttribute_GivenClaimWithMultipleEntries_WhenPriorityModeWithoutMatch_ThenSkipUpdate() {
+        var user = Mockito.mock(UserModel.class);
+
+        Mockito.when(user.getAttributeStream(attributeKey))
+                .thenReturn(Stream.empty());
+
+        var subject = new ClaimToAttributeMapper();
+        var config = newMapperConfig();
+        setSelectionMode(config, ClaimToAttributeMapper.SelectionMode.PRIORITY);
+        config.map.put(ClaimToAttributeMapper.PRIORITY_PATTERNS_PROPERTY, "admin-.*");
+
+        subject.assignClaimToAttribute(realmName, idpAlias, user, List.of("sapphire-stars", "rose-canyon"), config);
+
+        Mockito.verify(user, Mockito.never()).setAttribute(Mockito.anyString(), Mockito.anyList());
+    }
+
+    @Test
+    void testAssignClaimToAttribute_GivenClaimWithMultipleEntries_WhenFirstOrLastMode_ThenSetFirstOrLastEntry() {
+        var user = Mockito.mock(UserModel.class);
+
+        Mockito.when(user.getAttributeStream(attributeKey))
+                .thenReturn(Stream.empty(), Stream.empty());
+
+        var subject = new ClaimToAttributeMapper();
+        var config = newMapperConfig();
+        setIgnorePattern(config, "ignored");
+
+        setSelectionMode(config, ClaimToAttributeMapper.SelectionMode.FIRST);
+        subject.assignClaimToAttribute(realmName, idpAlias, user, List.of("ignored", "sapphire-stars", "rose-canyon", "ignored"), config);
+        Mockito.verify(user).setAttribute(attributeKey, List.of("sapphire-stars"));
+
+        setSelectionMode(config, ClaimToAttributeMapper.SelectionMode.LAST);
+        subject.assignClaimToAttribute(realmName, idpAlias, user, List.of("ignored", "sapphire-stars", "rose-canyon", "ignored"), config);
+        Mockito.verify(user).setAttribute(attributeKey, List.of("rose-canyon"));
+    }
+
+    @Test
+    void testAssignClaimToAttribute_GivenClaimWithMultipleEntries_WhenJoinMode_ThenSetJoinedEntries() {
+        var user = Mockito.mock(UserModel.class);
+
+        Mockito.when(user.getAttributeStream(attributeKey))
+                .thenReturn(Stream.empty());
+
+        var subject = new ClaimToAttributeMapper();
+        var config = newMapperConfig();
+        setSelectionMode(config, ClaimToAttributeMapper.SelectionMode.JOIN);
+        config.map.put(ClaimToAttributeMapper.JOIN_SEPARATOR_PROPERTY, ";");
+
+        subject.assignClaimToAttribute(realmName, idpAlias, user, List.of("sapphire-stars", "rose-canyon"), config);
+
+        Mockito.verify(user).setAttribute(attributeKey, List.of("sapphire-stars;rose-canyon"));
+    }
+
+    @Test
+    void testAssignClaimToAttribute_GivenInvalidRewriteRules_ThenSkipUpdate() {
+        var user = Mockito.mock(UserModel.class);
+
+        var subject = new ClaimToAttributeMapper();
+        var config = newMapperConfig();
+        config.map.put(GroupNameFormatter.REWRITE_RULES_PROPERTY, "^CN=(.*$ => $1");
+        subject.assignClaimToAttribute(realmName, idpAlias, user, List.of("CN=rose-canyon"), config);
+
+        Mockito.verify(user, Mockito.never()).setAttribute(Mockito.anyString(), Mockito.anyList());
+    }
+
+    @Test
+    void testAssignClaimToAttribute_GivenInvalidPriorityPattern_WhenPriorityMode_ThenSkipUpdate() {
+        var user = Mockito.mock(UserModel.class);
+
+        var subject = new ClaimToAttributeMapper();
+        var config = newMapperConfig();
+        setSelectionMode(config, ClaimToAttributeMapper.SelectionMode.PRIORITY);
+        config.map.put(ClaimToAttributeMapper.PRIORITY_PATTERNS_PROPERTY, "^team-(.*$");
+        subject.assignClaimToAttribute(realmName, idpAlias, user, List.of("team-rose"), config);
+        subject.assignClaimToAttribute(realmName, idpAlias, user, List.of("team-rose"), config);
+
+        Mockito.verify(user, Mockito.never()).setAttribute(Mockito.anyString(), Mockito.anyList());
+    }
+
+    @Test
+    void testAssignClaimToAttribute_GivenSameAttributeValue_WhenOverwriteEnabled_ThenSkipWrite() {
+        var user = Mockito.mock(UserModel.class);
+
+        Mockito.when(user.getAttributeStream(attributeKey))
+                .thenReturn(Stream.of("rose-canyon"));
+
+        var subject = new ClaimToAttributeMapper();
+        var config = newMapperConfig();
+        setOverwriteEnabled(config);
+        subject.assignClaimToAttribute(realmName, idpAlias, user, List.of("rose-canyon"), config);
+
+        Mockito.verify(user, Mockito.never()).setAttribute(Mockito.anyString(), Mockito.anyList());
+    }
+
+    private void setSelectionMode(ClaimToAttributeMapper.MapperConfig mapperConfig, ClaimToAttributeMapper.SelectionMode mode) {
+        mapperConfig.map.put(ClaimToAttributeMapper.SELECTION_MODE_PROPERTY, mode.value);
+    }
+
     private void setIgnorePattern(ClaimToAttributeMapper.MapperConfig mapperConfig, String pattern) {
         mapperConfig.map.put(ClaimToAttributeMapper.IGNORE_ENTRIES_PROPERTY, pattern);
     }
@@ -9,6 +9,7 @@ import org.mockito.Mockito;
 
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Stream;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -24,6 +25,7 @@ class ClaimToGroupMapperTest {
         //noinspection unchecked
         Mockito.when(realm.getGroupsStream()).thenReturn(Stream.empty(), Stream.of(createdGroup));
         Mockito.when(createdGroup.getName()).thenReturn("Rose Canyon");
+        Mockito.when(realm.createGroup("Rose Canyon")).thenReturn(createdGroup);
 
         var subject = new ClaimToGroupMapper();
         var config = newMapperConfig();
@@ -93,6 +95,195 @@ class ClaimToGroupMapperTest {
         Mockito.verify(user, Mockito.never()).leaveGroup(groupToKeep);
     }
 
+    @Test
+    void testSyncGroups_GivenEmptyList_WhenMaxLeaveCountExceeded_ThenKeepGroups() {
+        var realm = Mockito.mock(RealmModel.class);
+        var user = Mockito.mock(UserModel.class);
+        var group1 = Mockito.mock(GroupModel.class);
+        var group2 = Mockito.mock(GroupModel.class);
+
+        Mockito.when(realm.getName()).thenReturn("realm");
+        Mockito.when(realm.getGroupsStream()).thenReturn(Stream.of(group1, group2));
+        Mockito.when(user.getGroupsStream()).thenReturn(Stream.of(group1, group2));
+        Mockito.when(group1.getName()).thenReturn("Rose Canyon");
+        Mockito.when(group2.getName()).thenReturn("Sapphire Stars");
+
+        var subject = new ClaimToGroupMapper();
+        var config = newMapperConfig();
+        config.map.put(ClaimToGroupMapper.MAX_LEAVE_COUNT, "1");
+
+        subject.doSyncGroups(realm, user, List.of(), newInstrumentation(), config);
+
+        Mockito.verify(user, Mockito.never()).leaveGroup(Mockito.any());
+    }
+
+    @Test
+    void testSyncGroups_GivenGroupsAttribute_WhenGroupsChanged_ThenWriteSortedGroupNames() {
+        var realm = Mockito.mock(RealmModel.class);
+        var user = Mockito.mock(UserModel.class);
+        var existingGroup = Mockito.mock(GroupModel.class);
+        var newGroup = Mockito.mock(GroupModel.class);
+
+        Mockito.when(realm.getGroupsStream()).thenReturn(Stream.of(existingGroup, newGroup));
+        Mockito.when(user.getGroupsStream()).thenReturn(Stream.of(existingGroup));
+        Mockito.when(existingGroup.getId()).thenReturn("existing-id");
+        Mockito.when(newGroup.getId()).thenReturn("new-id");
+        Mockito.when(user.getAttributeStream("groups")).thenReturn(Stream.of("Sapphire Stars"));
+        Mockito.when(existingGroup.getName()).thenReturn("Sapphire Stars");
+        Mockito.when(newGroup.getName()).thenReturn("Rose Canyon");
+
+        var subject = new ClaimToGroupMapper();
+        var config = newMapperConfig();
+        config.map.put(ClaimToGroupMapper.GROUPS_ATTRIBUTE, "groups");
+
+        subject.doSyncGroups(realm, user, List.of("Sapphire Stars", "Rose Canyon"), newInstrumentation(), config);
+
+        Mockito.verify(user).joinGroup(newGroup);
+        Mockito.verify(user).setAttribute("groups", List.of("Rose Canyon", "Sapphire Stars"));
+    }
+
+    @Test
+    void testSyncGroups_GivenGroupsAttribute_WhenGroupsUnchanged_ThenSkipWrite() {
+        var realm = Mockito.mock(RealmModel.class);
+        var user = Mockito.mock(UserModel.class);
+        var group = Mockito.mock(GroupModel.class);
+
+        Mockito.when(realm.getGroupsStream()).thenReturn(Stream.of(group));
+        Mockito.when(user.getGroupsStream()).thenReturn(Stream.of(group));
+        Mockito.when(group.getId()).thenReturn("id");
+        Mockito.when(user.getAttributeStream("groups")).thenReturn(Stream.of("Rose Canyon"));
+        Mockito.when(group.getName()).thenReturn("Rose Canyon");
+
+        var subject = new ClaimToGroupMapper();
+        var config = newMapperConfig();
+        config.map.put(ClaimToGroupMapper.GROUPS_ATTRIBUTE, "groups");
+
+        subject.doSyncGroups(realm, user, List.of("Rose Canyon"), newInstrumentation(), config);
+
+        Mockito.verify(user, Mockito.never()).setAttribute(Mockito.anyString(), Mockito.anyList());
+    }
+
+    @Test
+    void testSyncGroups_GivenDifferentlyWrittenName_WhenLooseMatching_ThenJoinExistingGroup() {
+        var realm = Mockito.mock(RealmModel.class);
+        var user = Mockito.mock(UserModel.class);
+        var group = Mockito.mock(GroupModel.class);
+
+        Mockito.when(realm.getGroupsStream()).thenReturn(Stream.of(group));
+        Mockito.when(realm.getGroupById("group-id")).thenReturn(group);
+        Mockito.when(group.getId()).thenReturn("group-id");
+        Mockito.when(group.getName()).thenReturn("dev-team");
+
+        var subject = new ClaimToGroupMapper();
+        var config = newMapperConfig();
+        config.map.put(ClaimToGroupMapper.LOOSE_MATCHING, Boolean.toString(true));
+        setCreateGroupEnabled(config);
+
+        subject.doSyncGroups(realm, user, List.of("Dev Team"), newInstrumentation(), config);
+
+        Mockito.verify(realm, Mockito.never()).createGroup(Mockito.anyString());
+        Mockito.verify(group, Mockito.never()).setName(Mockito.anyString());
+        Mockito.verify(user).joinGroup(group);
+    }
+
+    @Test
+    void testSyncGroups_GivenUnknownGroupWhileRebuildThrottled_WhenLooseMatching_ThenDeferCreation() {
+        var realm = Mockito.mock(RealmModel.class);
+        var user = Mockito.mock(UserModel.class);
+        var group = Mockito.mock(GroupModel.class);
+
+        Mockito.when(realm.getGroupsStream()).thenAnswer(invocation -> Stream.empty());
+        var subject = new ClaimToGroupMapper();
+        var config = newMapperConfig();
+        config.map.put(ClaimToGroupMapper.LOOSE_MATCHING, Boolean.toString(true));
+        subject.doSyncGroups(realm, user, List.of("Dev Team"), newInstrumentation(), config);
+
+        // created by an admin or another node right after the index was built
+        Mockito.when(realm.getGroupsStream()).thenAnswer(invocation -> Stream.of(group));
+        Mockito.when(realm.getGroupById("group-id")).thenReturn(group);
+        Mockito.when(group.getId()).thenReturn("group-id");
+        Mockito.when(group.getName()).thenReturn("dev-team");
+        setCreateGroupEnabled(config);
+
+        subject.doSyncGroups(realm, user, List.of("Dev Team"), newInstrumentation(), config);
+
+        // the index may not know the group yet, so creating it could duplicate it
+        Mockito.verify(realm, Mockito.never()).createGroup(Mockito.anyString());
+        Mockito.verify(user, Mockito.never()).joinGroup(Mockito.any());
+        Mockito.verify(realm, Mockito.times(1)).getGroupsStream();
+    }
+
+    @Test
+    void testSyncGroupsByExternalId_GivenRenamedGroup_ThenJoinAndRenameGroup() {
+        var realm = Mockito.mock(RealmModel.class);
+        var user = Mockito.mock(UserModel.class);
+        var group = Mockito.mock(GroupModel.class);
+
+        Mockito.when(realm.getGroupsStream()).thenReturn(Stream.of(group));
+        Mockito.when(realm.getGroupById("group-id")).thenReturn(group);
+        Mockito.when(group.getId()).thenReturn("group-id");
+        Mockito.when(group.getName()).thenReturn("Rose Canyon");
+        Mockito.when(group.getFirstAttribute("external_id")).thenReturn("0a1b");
+
+        var subject = new ClaimToGroupMapper();
+        var config = newMapperConfig();
+        config.map.put(ClaimToGroupMapper.EXTERNAL_ID_ATTRIBUTE, "external_id");
+        setCreateGroupEnabled(config);
+
+        subject.doSyncGroupsByExternalId(realm, user, List.of("0a1b"), Map.of("0a1b", "Sapphire Stars"), newInstrumentation(), config);
+
+        Mockito.verify(realm, Mockito.never()).createGroup(Mockito.anyString());
+        Mockito.verify(user).joinGroup(group);
+        Mockito.verify(group).setName("Sapphire Stars");
+    }
+
+    @Test
+    void testSyncGroupsByExternalId_GivenUnknownIdWhileRebuildThrottled_WhenCreateEnabled_ThenDeferCreation() {
+        var realm = Mockito.mock(RealmModel.class);
+        var user = Mockito.mock(UserModel.class);
+        var group = Mockito.mock(GroupModel.class);
+
+        Mockito.when(realm.getGroupsStream()).thenAnswer(invocation -> Stream.empty());
+        var subject = new ClaimToGroupMapper();
+        var config = newMapperConfig();
+        config.map.put(ClaimToGroupMapper.EXTERNAL_ID_ATTRIBUTE, "external_id");
+        subject.doSyncGroupsByExternalId(realm, user, List.of("0a1b"), Map.of(), newInstrumentation(), config);
+
+        // created by an admin or another node right after the index was built
+        Mockito.when(realm.getGroupsStream()).thenAnswer(invocation -> Stream.of(group));
+        Mockito.when(realm.getGroupById("group-id")).thenReturn(group);
+        Mockito.when(group.getId()).thenReturn("group-id");
+        Mockito.when(group.getFirstAttribute("external_id")).thenReturn("0a1b");
+        setCreateGroupEnabled(config);
+
+        subject.doSyncGroupsByExternalId(realm, user, List.of("0a1b"), Map.of(), newInstrumentation(), config);
+
+        // the index may not know the group yet, so creating it could duplicate it
+        Mockito.verify(realm, Mockito.never()).createGroup(Mockito.anyString());
+        Mockito.verify(user, Mockito.never()).joinGroup(Mockito.any());
+        Mockito.verify(realm, Mockito.times(1)).getGroupsStream();
+    }
+
+    @Test
+    void testSyncGroupsByExternalId_GivenUnknownId_WhenCreateEnabled_ThenCreateGroupWithExternalId() {
+        var realm = Mockito.mock(RealmModel.class);
+        var user = Mockito.mock(UserModel.class);
+        var createdGroup = Mockito.mock(GroupModel.class);
+
+        Mockito.when(realm.getGroupsStream()).thenAnswer(invocation -> Stream.empty());
+        Mockito.when(realm.createGroup("Rose Canyon")).thenReturn(createdGroup);
+
+        var subject = new ClaimToGroupMapper();
+        var config = newMapperConfig();
+        config.map.put(ClaimToGroupMapper.EXTERNAL_ID_ATTRIBUTE, "external_id");
+        setCreateGroupEnabled(config);
+
+        subject.doSyncGroupsByExternalId(realm, user, List.of("0a1b"), Map.of("0a1b", "Rose Canyon"), newInstrumentation(), config);
+
+        Mockito.verify(createdGroup).setSingleAttribute("external_id", "0a1b");
+        Mockito.verify(user).joinGroup(createdGroup);
+    }
+
     @Test
     void testFilterGroupNames_GivenEmptyListOfPattern_WhenDefaultConfig_ThenReturnUnformatted() {
         var subject = new ClaimToGroupMapper();
@@ -127,6 +318,17 @@ class ClaimToGroupMapperTest {
         assertThat(result).isEmpty();
     }
 
+    @Test
+    void testFilterGroupNames_GivenRewriteRules_ThenReturnRewrittenMatchesOnly() {
+        var subject = new ClaimToGroupMapper();
+        var config = newMapperConfig();
+        config.map.put(GroupNameFormatter.REWRITE_RULES_PROPERTY, "^CN=([^,]+),OU=Teams.*$ => team-$1");
+
+        var result = subject.filterGroupNames(List.of("CN=rose,OU=Teams,DC=example", "CN=admins,OU=Roles,DC=example"), config);
+
+        assertThat(result).containsExactly("team-rose");
+    }
+
     private ClaimToGroupMapper.Instrumentation newInstrumentation() {
         return new ClaimToGroupMapper.Instrumentation("realm", "idp", "user");
     }
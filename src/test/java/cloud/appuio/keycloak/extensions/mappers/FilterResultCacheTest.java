@@ -0,0 +1,82 @@
+package cloud.appuio.keycloak.extensions.mappers;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class FilterResultCacheTest {
+
+    @Test
+    void testGet_GivenIdenticalClaim_ThenReturnSharedResult() {
+        var subject = new FilterResultCache(10, 1000);
+
+        var first = subject.get("config", List.of("Rose Canyon"), 0, () -> Set.of("rose-canyon"));
+        var second = subject.get("config", List.of("Rose Canyon"), 1, () -> Set.of("computed-again"));
+
+        assertThat(second).isSameAs(first).containsExactly("rose-canyon");
+        assertThat(subject.getHitRate()).isEqualTo(0.5);
+    }
+
+    @Test
+    void testGet_GivenDifferentConfig_ThenCompute() {
+        var subject = new FilterResultCache(10, 1000);
+
+        subject.get("config", List.of("Rose Canyon"), 0, () -> Set.of("rose-canyon"));
+        var result = subject.get("other", List.of("Rose Canyon"), 0, () -> Set.of("Rose Canyon"));
+
+        assertThat(result).containsExactly("Rose Canyon");
+        assertThat(subject.getHits()).isZero();
+    }
+
+    @Test
+    void testGet_GivenHashCollision_ThenCompareClaims() {
+        var subject = new FilterResultCache(10, 1000);
+        // "Aa" and "BB" have the same hash code
+        assertThat(List.of("Aa").hashCode()).isEqualTo(List.of("BB").hashCode());
+
+        subject.get("config", List.of("Aa"), 0, () -> Set.of("aa"));
+        var result = subject.get("config", List.of("BB"), 0, () -> Set.of("bb"));
+
+        assertThat(result).containsExactly("bb");
+        assertThat(subject.getHits()).isZero();
+    }
+
+    @Test
+    void testGet_GivenExpiredEntry_ThenRecompute() {
+        var subject = new FilterResultCache(10, 1000);
+
+        subject.get("config", List.of("Rose Canyon"), 0, () -> Set.of("rose-canyon"));
+        var result = subject.get("config", List.of("Rose Canyon"), 1000, () -> Set.of("recomputed"));
+
+        assertThat(result).containsExactly("recomputed");
+    }
+
+    @Test
+    void testGet_GivenFullCache_ThenEvictOldestEntries() {
+        var subject = new FilterResultCache(2, 1000);
+
+        subject.get("config", List.of("a"), 0, () -> Set.of("a"));
+        subject.get("config", List.of("b"), 1, () -> Set.of("b"));
+        subject.get("config", List.of("c"), 2, () -> Set.of("c"));
+
+        assertThat(subject.size()).isEqualTo(2);
+        assertThat(subject.get("config", List.of("c"), 3, () -> Set.of("recomputed"))).containsExactly("c");
+        assertThat(subject.get("config", List.of("a"), 3, () -> Set.of("recomputed"))).containsExactly("recomputed");
+    }
+
+    @Test
+    void testGet_GivenRecomputedEntry_WhenCacheFull_ThenEvictOlderEntryFirst() {
+        var subject = new FilterResultCache(2, 1000);
+
+        subject.get("config", List.of("a"), 0, () -> Set.of("a"));
+        subject.get("config", List.of("b"), 1, () -> Set.of("b"));
+        subject.get("config", List.of("a"), 1000, () -> Set.of("a2"));
+        subject.get("config", List.of("c"), 1001, () -> Set.of("c"));
+
+        assertThat(subject.get("config", List.of("a"), 1002, () -> Set.of("recomputed"))).containsExactly("a2");
+        assertThat(subject.get("config", List.of("b"), 1002, () -> Set.of("recomputed"))).containsExactly("recomputed");
+    }
+}
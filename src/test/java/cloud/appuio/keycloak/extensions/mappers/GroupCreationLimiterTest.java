@@ -0,0 +1,36 @@
+package cloud.appuio.keycloak.extensions.mappers;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class GroupCreationLimiterTest {
+
+    @Test
+    void testTryCreate_GivenRateLimit_ThenRefillOverTime() {
+        var subject = new GroupCreationLimiter();
+        var limits = new GroupCreationLimiter.Limits(2, 0);
+
+        assertThat(subject.tryCreate("realm/idp", limits, () -> 0, 0)).isEqualTo(GroupCreationLimiter.Decision.PERMITTED);
+        assertThat(subject.tryCreate("realm/idp", limits, () -> 0, 0)).isEqualTo(GroupCreationLimiter.Decision.PERMITTED);
+        assertThat(subject.tryCreate("realm/idp", limits, () -> 0, 0)).isEqualTo(GroupCreationLimiter.Decision.RATE_LIMITED);
+        assertThat(subject.tryCreate("realm/other", limits, () -> 0, 0)).isEqualTo(GroupCreationLimiter.Decision.PERMITTED);
+        assertThat(subject.tryCreate("realm/idp", limits, () -> 0, 30_000)).isEqualTo(GroupCreationLimiter.Decision.PERMITTED);
+        assertThat(subject.getRateLimitedCount()).isEqualTo(1);
+    }
+
+    @Test
+    void testTryCreate_GivenQuota_ThenCountCreatedGroupsOnce() {
+        var subject = new GroupCreationLimiter();
+        var limits = new GroupCreationLimiter.Limits(0, 3);
+        var counted = new int[]{0};
+
+        for (int i = 0; i < 3; i++) {
+            subject.tryCreate("realm/idp", limits, () -> ++counted[0], 0);
+        }
+
+        assertThat(counted[0]).isEqualTo(1);
+        assertThat(subject.tryCreate("realm/idp", limits, () -> 1, 1)).isEqualTo(GroupCreationLimiter.Decision.QUOTA_EXCEEDED);
+        assertThat(subject.getQuotaExceededCount()).isEqualTo(2);
+    }
+}
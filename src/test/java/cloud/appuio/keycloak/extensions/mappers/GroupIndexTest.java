@@ -0,0 +1,108 @@
+package cloud.appuio.keycloak.extensions.mappers;
+
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.RealmModel;
+import org.mockito.Mockito;
+
+import java.util.List;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class GroupIndexTest {
+
+    private final Function<GroupModel, String> externalIdOf = group -> group.getFirstAttribute("external_id");
+
+    @Test
+    void testResolve_GivenKnownKey_ThenLookUpById() {
+        var realm = Mockito.mock(RealmModel.class);
+        var group = newGroup(realm, "group-id", "0a1b");
+        Mockito.when(realm.getGroupsStream()).thenReturn(Stream.of(group));
+
+        var subject = new GroupIndex(10_000);
+
+        assertThat(subject.resolve(realm, "external_id", externalIdOf, List.of("0a1b"), 0).getGroups()).containsExactly(group);
+        assertThat(subject.resolve(realm, "external_id", externalIdOf, List.of("0a1b"), 1).getGroups()).containsExactly(group);
+
+        Mockito.verify(realm, Mockito.times(1)).getGroupsStream();
+        assertThat(subject.getRebuildCount()).isEqualTo(1);
+    }
+
+    @Test
+    void testResolve_GivenUnknownKey_ThenRebuildAtMostOncePerInterval() {
+        var realm = Mockito.mock(RealmModel.class);
+        Mockito.when(realm.getGroupsStream()).thenAnswer(invocation -> Stream.empty());
+
+        var subject = new GroupIndex(10_000);
+
+        assertThat(subject.resolve(realm, "external_id", externalIdOf, List.of("0a1b"), 0).getGroups()).isEmpty();
+        assertThat(subject.resolve(realm, "external_id", externalIdOf, List.of("0a1b"), 5_000).getGroups()).isEmpty();
+        assertThat(subject.resolve(realm, "external_id", externalIdOf, List.of("0a1b"), 10_000).getGroups()).isEmpty();
+
+        assertThat(subject.getRebuildCount()).isEqualTo(2);
+    }
+
+    @Test
+    void testResolve_GivenUnknownKey_ThenReportAbsentKeysOnlyAfterRebuild() {
+        var realm = Mockito.mock(RealmModel.class);
+        Mockito.when(realm.getGroupsStream()).thenAnswer(invocation -> Stream.empty());
+
+        var subject = new GroupIndex(10_000);
+
+        assertThat(subject.resolve(realm, "external_id", externalIdOf, List.of("0a1b"), 0).getAbsentKeys()).containsExactly("0a1b");
+        assertThat(subject.resolve(realm, "external_id", externalIdOf, List.of("0a1b"), 1).getAbsentKeys()).isEmpty();
+    }
+
+    @Test
+    void testResolve_GivenChangedKey_ThenDropStaleEntry() {
+        var realm = Mockito.mock(RealmModel.class);
+        var group = newGroup(realm, "group-id", "0a1b");
+        Mockito.when(realm.getGroupsStream()).thenReturn(Stream.of(group));
+
+        var subject = new GroupIndex(10_000);
+        subject.resolve(realm, "external_id", externalIdOf, List.of("0a1b"), 0);
+        Mockito.when(group.getFirstAttribute("external_id")).thenReturn("2c3d");
+
+        assertThat(subject.resolve(realm, "external_id", externalIdOf, List.of("0a1b"), 1).getGroups()).isEmpty();
+    }
+
+    @Test
+    void testPut_GivenCreatedGroup_ThenResolveWithoutRebuild() {
+        var realm = Mockito.mock(RealmModel.class);
+        Mockito.when(realm.getGroupsStream()).thenReturn(Stream.empty());
+
+        var subject = new GroupIndex(10_000);
+        subject.resolve(realm, "external_id", externalIdOf, List.of("0a1b"), 0);
+        var group = newGroup(realm, "group-id", "0a1b");
+        subject.put(realm, "external_id", "0a1b", group);
+
+        assertThat(subject.resolve(realm, "external_id", externalIdOf, List.of("0a1b"), 1).getGroups()).containsExactly(group);
+        assertThat(subject.getRebuildCount()).isEqualTo(1);
+    }
+
+    @Test
+    void testResolve_GivenGroupsWithSameKey_ThenUseLowestIdAndReportCollision() {
+        var realm = Mockito.mock(RealmModel.class);
+        var group1 = newGroup(realm, "b", "0a1b");
+        var group2 = newGroup(realm, "a", "0a1b");
+        Mockito.when(group1.getName()).thenReturn("Dev Team");
+        Mockito.when(group2.getName()).thenReturn("dev-team");
+        Mockito.when(realm.getGroupsStream()).thenReturn(Stream.of(group1, group2));
+
+        var subject = new GroupIndex(10_000);
+
+        assertThat(subject.resolve(realm, "external_id", externalIdOf, List.of("0a1b"), 0).getGroups()).containsExactly(group2);
+        assertThat(subject.getCollisions(realm, "external_id")).containsOnlyKeys("0a1b");
+        assertThat(subject.getCollisions(realm, "external_id").get("0a1b")).containsExactly("dev-team", "Dev Team");
+    }
+
+    private GroupModel newGroup(RealmModel realm, String id, String externalId) {
+        var group = Mockito.mock(GroupModel.class);
+        Mockito.when(group.getId()).thenReturn(id);
+        Mockito.when(group.getFirstAttribute("external_id")).thenReturn(externalId);
+        Mockito.when(realm.getGroupById(id)).thenReturn(group);
+        return group;
+    }
+}
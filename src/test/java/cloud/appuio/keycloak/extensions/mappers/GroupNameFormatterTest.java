@@ -3,6 +3,7 @@ package cloud.appuio.keycloak.extensions.mappers;
 import org.junit.jupiter.api.Test;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
 class GroupNameFormatterTest {
 
@@ -68,4 +69,77 @@ class GroupNameFormatterTest {
 
         assertThat(result).isEqualTo("sapphire-stars");
     }
+
+    @Test
+    void testRewrite_GivenRules_ThenFirstMatchingRuleWins() {
+        var subject = new GroupNameFormatter()
+                .withRewriteRules("^CN=([^,]+),OU=Teams.*$ => team-$1##^CN=([^,]+),.*$ => other-$1");
+
+        assertThat(subject.rewrite("CN=rose,OU=Teams,DC=example")).contains("team-rose");
+        assertThat(subject.rewrite("CN=sapphire,OU=Roles,DC=example")).contains("other-sapphire");
+    }
+
+    @Test
+    void testRewrite_GivenRules_WhenNoRuleMatches_ThenReturnEmpty() {
+        var subject = new GroupNameFormatter().withRewriteRules("^CN=([^,]+),OU=Teams.*$ => team-$1");
+
+        assertThat(subject.rewrite("Sapphire Stars")).isEmpty();
+    }
+
+    @Test
+    void testRewrite_GivenRulesAndOptions_ThenFormatRewrittenName() {
+        var subject = new GroupNameFormatter()
+                .withRewriteRules("^CN=([^,]+),OU=Teams.*$ => Team $1")
+                .withTrimWhitespace(true)
+                .withToLowerCase(true);
+
+        assertThat(subject.rewrite("CN=Rose Canyon,OU=Teams")).contains("team-rose-canyon");
+    }
+
+    @Test
+    void testRewrite_GivenNoRules_ThenFormat() {
+        var subject = new GroupNameFormatter().withToLowerCase(true);
+
+        assertThat(subject.rewrite("SAPPHIRE")).contains("sapphire");
+    }
+
+    @Test
+    void testMatchKey_GivenVariantsOfSameName_ThenReturnSameKey() {
+        assertThat(GroupNameFormatter.matchKey("Dev Team")).isEqualTo("devteam");
+        assertThat(GroupNameFormatter.matchKey("dev-team")).isEqualTo("devteam");
+        assertThat(GroupNameFormatter.matchKey("ＤＥＶ\u3000ＴＥＡＭ")).isEqualTo("devteam");
+        assertThat(GroupNameFormatter.matchKey("Straße")).isEqualTo(GroupNameFormatter.matchKey("STRASSE"));
+    }
+
+    @Test
+    void testMatchKey_GivenDifferentNames_ThenReturnDifferentKeys() {
+        assertThat(GroupNameFormatter.matchKey("dev_team")).isNotEqualTo(GroupNameFormatter.matchKey("dev team"));
+    }
+
+    @Test
+    void testWithRewriteRules_GivenMalformedRule_ThenThrowOnEveryUse() {
+        assertThatThrownBy(() -> new GroupNameFormatter().withRewriteRules("^CN=(.*$ => $1"))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> new GroupNameFormatter().withRewriteRules("^CN=(.*$ => $1"))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> new GroupNameFormatter().withRewriteRules("no separator"))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void testWithRewriteRules_GivenInvalidGroupReference_ThenThrow() {
+        assertThatThrownBy(() -> new GroupNameFormatter().withRewriteRules("^team-(.*)$ => $2"))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> new GroupNameFormatter().withRewriteRules("^team-(.*)$ => $1$"))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> new GroupNameFormatter().withRewriteRules("^team-(?<name>.*)$ => ${team}"))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void testRewrite_GivenNamedGroupAndEscapedDollar_ThenRewrite() {
+        var subject = new GroupNameFormatter().withRewriteRules("^team-(?<name>.*)$ => ${name}\\$$0");
+
+        assertThat(subject.rewrite("team-rose")).contains("rose$team-rose");
+    }
 }
@@ -0,0 +1,95 @@
+package cloud.appuio.keycloak.extensions.mappers;
+
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.GroupModel;
+import org.mockito.Mockito;
+
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class GroupReconcilerTest {
+
+    @Test
+    void testReconcile_GivenClaim_ThenComputeCreateJoinAndLeave() {
+        var keep = newGroup("keep-id", "keep");
+        var join = newGroup("join-id", "join");
+        var leave = newGroup("leave-id", "leave");
+        var unrelated = newGroup("unrelated-id", "unrelated");
+
+        var delta = GroupReconciler.reconcile(
+                Stream.of(keep, join, leave, unrelated),
+                Stream.of(keep, leave),
+                Set.of("keep", "join", "create"));
+
+        assertThat(delta.getGroupsToCreate()).containsExactly("create");
+        assertThat(delta.getGroupsToJoin()).containsExactly(join);
+        assertThat(delta.getGroupsToLeave()).containsExactly(leave);
+        assertThat(delta.getGroupsToKeep()).containsExactly(keep);
+        assertThat(delta.getCurrentGroupCount()).isEqualTo(2);
+    }
+
+    @Test
+    void testReconcile_GivenMembershipOfSubgroup_ThenDoNotJoinParent() {
+        var parent = newGroup("parent-id", "parent");
+        var child = newGroup("child-id", "child");
+        Mockito.when(child.getParent()).thenReturn(parent);
+
+        var delta = GroupReconciler.reconcile(
+                Stream.of(parent, child),
+                Stream.of(child),
+                Set.of("parent", "child"));
+
+        assertThat(delta.getGroupsToJoin()).isEmpty();
+        assertThat(delta.getGroupsToLeave()).isEmpty();
+    }
+
+    @Test
+    void testReconcile_GivenManySubgroupsOfSameParent_ThenWalkUpSharedAncestorsOnce() {
+        var root = newGroup("root-id", "root");
+        var parent = newGroup("parent-id", "parent");
+        Mockito.when(parent.getParent()).thenReturn(root);
+        var children = IntStream.range(0, 100).mapToObj(i -> {
+            var child = newGroup("child-id-" + i, "child-" + i);
+            Mockito.when(child.getParent()).thenReturn(parent);
+            return child;
+        }).collect(Collectors.toList());
+        var claim = children.stream().map(GroupModel::getName).collect(Collectors.toSet());
+        claim.add("root");
+
+        var delta = GroupReconciler.reconcile(
+                Stream.concat(Stream.of(root, parent), children.stream()),
+                children.stream(),
+                claim);
+
+        assertThat(delta.getGroupsToJoin()).isEmpty();
+        assertThat(delta.getGroupsToKeep()).hasSize(100);
+        Mockito.verify(parent, Mockito.times(1)).getParent();
+        Mockito.verify(root, Mockito.times(1)).getParent();
+    }
+
+    @Test
+    void testReconcile_GivenMembershipOfLeftSubgroup_ThenJoinParent() {
+        var parent = newGroup("parent-id", "parent");
+        var child = newGroup("child-id", "child");
+        Mockito.when(child.getParent()).thenReturn(parent);
+
+        var delta = GroupReconciler.reconcile(
+                Stream.of(parent, child),
+                Stream.of(child),
+                Set.of("parent"));
+
+        assertThat(delta.getGroupsToJoin()).containsExactly(parent);
+        assertThat(delta.getGroupsToLeave()).containsExactly(child);
+    }
+
+    private GroupModel newGroup(String id, String name) {
+        var group = Mockito.mock(GroupModel.class);
+        Mockito.when(group.getId()).thenReturn(id);
+        Mockito.when(group.getName()).thenReturn(name);
+        return group;
+    }
+}
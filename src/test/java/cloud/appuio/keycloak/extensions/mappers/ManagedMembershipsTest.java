@@ -0,0 +1,106 @@
+package cloud.appuio.keycloak.extensions.mappers;
+
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.mockito.Mockito;
+
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ManagedMembershipsTest {
+
+    @Test
+    void testConfirm_GivenNewMemberships_ThenStampGroupsAndDay() {
+        var realm = Mockito.mock(RealmModel.class);
+        var user = Mockito.mock(UserModel.class);
+        var group1 = Mockito.mock(GroupModel.class);
+        var group2 = Mockito.mock(GroupModel.class);
+
+        Mockito.when(group1.getId()).thenReturn("id-2");
+        Mockito.when(group2.getId()).thenReturn("id-1");
+
+        ManagedMemberships.confirm(realm, user, "idp", List.of(group1, group2), 20000, ChangeJournal.DISABLED);
+
+        Mockito.verify(user).setAttribute("idp_groups.idp", List.of("id-1", "id-2"));
+        Mockito.verify(user).setSingleAttribute("idp_groups_confirmed.idp", "20000");
+    }
+
+    @Test
+    void testConfirm_GivenAlreadyConfirmedToday_ThenSkipWrite() {
+        var realm = Mockito.mock(RealmModel.class);
+        var user = Mockito.mock(UserModel.class);
+        var group = Mockito.mock(GroupModel.class);
+
+        Mockito.when(group.getId()).thenReturn("id-1");
+        Mockito.when(user.getAttributeStream("idp_groups.idp")).thenReturn(Stream.of("id-1"));
+        Mockito.when(user.getFirstAttribute("idp_groups_confirmed.idp")).thenReturn("20000");
+
+        ManagedMemberships.confirm(realm, user, "idp", List.of(group), 20000, ChangeJournal.DISABLED);
+
+        Mockito.verify(user, Mockito.never()).setAttribute(Mockito.anyString(), Mockito.anyList());
+        Mockito.verify(user, Mockito.never()).setSingleAttribute(Mockito.anyString(), Mockito.anyString());
+    }
+
+    @Test
+    void testExpire_GivenMembershipsConfirmedOnDay_ThenLeaveGroups() {
+        var realm = Mockito.mock(RealmModel.class);
+        var user = Mockito.mock(UserModel.class);
+        var group = Mockito.mock(GroupModel.class);
+
+        Mockito.when(realm.getGroupById("id-1")).thenReturn(group);
+        Mockito.when(group.getName()).thenReturn("Rose Canyon");
+        Mockito.when(user.isMemberOf(group)).thenReturn(true);
+        Mockito.when(user.getAttributeStream("idp_groups.idp")).thenReturn(Stream.of("id-1", "deleted-group"));
+        Mockito.when(user.getFirstAttribute("idp_groups_confirmed.idp")).thenReturn("20000");
+
+        var result = ManagedMemberships.expire(realm, user, "idp", "", 20000, ChangeJournal.DISABLED);
+
+        assertThat(result).containsExactly("Rose Canyon");
+        Mockito.verify(user).leaveGroup(group);
+        Mockito.verify(user).removeAttribute("idp_groups.idp");
+        Mockito.verify(user).removeAttribute("idp_groups_confirmed.idp");
+    }
+
+    @Test
+    void testExpire_GivenGroupsAttribute_ThenRemoveExpiredGroupNames() {
+        var realm = Mockito.mock(RealmModel.class);
+        var user = Mockito.mock(UserModel.class);
+        var group = Mockito.mock(GroupModel.class);
+
+        Mockito.when(realm.getGroupById("id-1")).thenReturn(group);
+        Mockito.when(group.getName()).thenReturn("Rose Canyon");
+        Mockito.when(user.isMemberOf(group)).thenReturn(true);
+        Mockito.when(user.getAttributeStream("idp_groups.idp")).thenReturn(Stream.of("id-1"));
+        Mockito.when(user.getAttributeStream("groups")).thenReturn(Stream.of("Rose Canyon", "Sapphire Stars"));
+        Mockito.when(user.getFirstAttribute("idp_groups_confirmed.idp")).thenReturn("20000");
+
+        var changes = Mockito.mock(ChangeRecorder.class);
+        Mockito.when(realm.getName()).thenReturn("realm");
+        Mockito.when(user.getUsername()).thenReturn("user");
+
+        ManagedMemberships.expire(realm, user, "idp", "groups", 20000, changes);
+
+        Mockito.verify(user).setAttribute("groups", List.of("Sapphire Stars"));
+        Mockito.verify(changes).record("realm", "idp", "user", ChangeJournal.ChangeType.ATTRIBUTE_SET, "groups", List.of("Sapphire Stars"));
+        Mockito.verify(changes).record("realm", "idp", "user", ChangeJournal.ChangeType.ATTRIBUTE_REMOVED, "idp_groups.idp", List.of("id-1"));
+        Mockito.verify(changes).record("realm", "idp", "user", ChangeJournal.ChangeType.ATTRIBUTE_REMOVED, "idp_groups_confirmed.idp", List.of("20000"));
+    }
+
+    @Test
+    void testExpire_GivenMembershipsConfirmedOnOtherDay_ThenKeepGroups() {
+        var realm = Mockito.mock(RealmModel.class);
+        var user = Mockito.mock(UserModel.class);
+
+        Mockito.when(user.getFirstAttribute("idp_groups_confirmed.idp")).thenReturn("20001");
+
+        var result = ManagedMemberships.expire(realm, user, "idp", "", 20000, ChangeJournal.DISABLED);
+
+        assertThat(result).isNull();
+        Mockito.verify(user, Mockito.never()).leaveGroup(Mockito.any());
+        Mockito.verify(user, Mockito.never()).removeAttribute(Mockito.anyString());
+    }
+}
@@ -0,0 +1,48 @@
+package cloud.appuio.keycloak.extensions.mappers;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MassLeaveGuardTest {
+
+    @Test
+    void testPermitsShrink_GivenNoLimits_ThenPermit() {
+        var subject = new MassLeaveGuard();
+
+        assertThat(subject.permitsShrink(10, 10, new MassLeaveGuard.Limits(0, 0, 0))).isTrue();
+        assertThat(subject.getShrinkTrips()).isZero();
+    }
+
+    @Test
+    void testPermitsShrink_GivenCountLimit_WhenExceeded_ThenRefuse() {
+        var subject = new MassLeaveGuard();
+        var limits = new MassLeaveGuard.Limits(3, 0, 0);
+
+        assertThat(subject.permitsShrink(10, 3, limits)).isTrue();
+        assertThat(subject.permitsShrink(10, 4, limits)).isFalse();
+        assertThat(subject.getShrinkTrips()).isEqualTo(1);
+    }
+
+    @Test
+    void testPermitsShrink_GivenCountAndPercentageLimit_ThenRequireBothExceeded() {
+        var subject = new MassLeaveGuard();
+        var limits = new MassLeaveGuard.Limits(2, 50, 0);
+
+        assertThat(subject.permitsShrink(1, 1, limits)).isTrue();
+        assertThat(subject.permitsShrink(20, 5, limits)).isTrue();
+        assertThat(subject.permitsShrink(8, 5, limits)).isFalse();
+    }
+
+    @Test
+    void testAcquireRemovals_GivenRateLimit_ThenDeferRemovalsUntilNextMinute() {
+        var subject = new MassLeaveGuard();
+        var limits = new MassLeaveGuard.Limits(0, 0, 5);
+
+        assertThat(subject.acquireRemovals("realm", 3, limits, 60_000)).isEqualTo(3);
+        assertThat(subject.acquireRemovals("realm", 3, limits, 61_000)).isEqualTo(2);
+        assertThat(subject.acquireRemovals("other", 3, limits, 61_000)).isEqualTo(3);
+        assertThat(subject.acquireRemovals("realm", 3, limits, 120_000)).isEqualTo(3);
+        assertThat(subject.getRateLimitTrips()).isEqualTo(1);
+    }
+}
@@ -0,0 +1,66 @@
+package cloud.appuio.keycloak.extensions.mappers;
+
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RealmProvider;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+import org.mockito.Mockito;
+
+import java.util.stream.Stream;
+
+class MembershipExpirySweeperTest {
+
+    @Test
+    void testSweepDay_GivenUsersConfirmedOnDay_ThenExpireInBatches() {
+        var factory = Mockito.mock(KeycloakSessionFactory.class);
+        var session = Mockito.mock(KeycloakSession.class);
+        var realm = Mockito.mock(RealmModel.class);
+        var users = Mockito.mock(UserProvider.class);
+        var group = Mockito.mock(GroupModel.class);
+        var expiredUser1 = newUser("user-1", "20000");
+        var expiredUser2 = newUser("user-2", "20000");
+        var reconfirmedUser = newUser("user-3", "20031");
+
+        var realms = Mockito.mock(RealmProvider.class);
+        Mockito.when(realms.getRealm("realm-id")).thenReturn(realm);
+        Mockito.when(session.realms()).thenReturn(realms);
+        Mockito.when(session.users()).thenReturn(users);
+        Mockito.when(session.getKeycloakSessionFactory()).thenReturn(factory);
+        Mockito.when(session.getTransactionManager()).thenReturn(Mockito.mock(KeycloakTransactionManager.class));
+        Mockito.when(factory.create()).thenReturn(session);
+        Mockito.when(realm.getGroupById("id-1")).thenReturn(group);
+        Mockito.when(group.getName()).thenReturn("Rose Canyon");
+        Mockito.when(users.searchForUserByUserAttributeStream(realm, "idp_groups_confirmed.idp", "20000"))
+                .thenReturn(Stream.of(expiredUser1, reconfirmedUser, expiredUser2));
+        Mockito.when(users.getUserById(realm, "user-1")).thenReturn(expiredUser1);
+        Mockito.when(users.getUserById(realm, "user-2")).thenReturn(expiredUser2);
+        Mockito.when(users.getUserById(realm, "user-3")).thenReturn(reconfirmedUser);
+        Mockito.when(expiredUser1.isMemberOf(group)).thenReturn(true);
+        Mockito.when(expiredUser2.isMemberOf(group)).thenReturn(true);
+        Mockito.when(reconfirmedUser.isMemberOf(group)).thenReturn(true);
+
+        var subject = new MembershipExpirySweeper("oidc-group-idp-mapper", 2, 30, ChangeJournal.DISABLED);
+        subject.sweepDay(session, new MembershipExpirySweeper.Target("realm-id", "realm", "idp", 30, ""), 20000);
+
+        Mockito.verify(factory, Mockito.times(2)).create();
+        Mockito.verify(expiredUser1).leaveGroup(group);
+        Mockito.verify(expiredUser2).leaveGroup(group);
+        Mockito.verify(reconfirmedUser, Mockito.never()).leaveGroup(Mockito.any());
+        Mockito.verify(expiredUser1).removeAttribute("idp_groups_confirmed.idp");
+        Mockito.verify(reconfirmedUser, Mockito.never()).removeAttribute(Mockito.anyString());
+    }
+
+    private static UserModel newUser(String id, String confirmedDay) {
+        var user = Mockito.mock(UserModel.class);
+        Mockito.when(user.getId()).thenReturn(id);
+        Mockito.when(user.getUsername()).thenReturn(id);
+        Mockito.when(user.getFirstAttribute("idp_groups_confirmed.idp")).thenReturn(confirmedDay);
+        Mockito.when(user.getAttributeStream("idp_groups.idp")).thenAnswer(invocation -> Stream.of("id-1"));
+        return user;
+    }
+}